@@ -0,0 +1,187 @@
+package cloud.literallya.phpBridge;
+
+import static cloud.literallya.phpBridge.ProtocolConstants.bridge_ACCEPT_DEFLATE;
+import static cloud.literallya.phpBridge.ProtocolConstants.bridge_CLOSE;
+import static cloud.literallya.phpBridge.ProtocolConstants.bridge_DEFLATE;
+import static cloud.literallya.phpBridge.ProtocolConstants.bridge_INVOKE;
+import static cloud.literallya.phpBridge.ProtocolConstants.bridge_NEGOTIATE;
+import static cloud.literallya.phpBridge.ProtocolConstants.bridge_POP;
+import static cloud.literallya.phpBridge.ProtocolConstants.bridge_S;
+import static cloud.literallya.phpBridge.ProtocolConstants.bridge_STR;
+import static cloud.literallya.phpBridge.ProtocolConstants.bridge_SYM;
+import static cloud.literallya.phpBridge.ProtocolConstants.bridge_SYMDEF;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import com.google.common.base.Charsets;
+
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Finds the payload size above which compressing is faster than not over loopback TCP to a {@link BridgeServer}.
+ * <br>
+ * Each round trip sends a JSON-like report string to Java and gets it back (its <code>toString()</code>), compressing both
+ * ways at the same deflate level PHP uses, or not at all. Reports the time per round trip for each size.
+ * <br>
+ * Usage: <code>CompressionBenchmark [sizes...]</code>, defaults to 1K up to 16M in steps of 4
+ */
+public class CompressionBenchmark{
+
+  // Roughly how many payload bytes to send per measurement
+  private static final long BYTES_PER_RUN = 128L << 20;
+
+  private static final Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+  private static final Inflater inflater = new Inflater(true);
+
+  private static byte[] deflate(byte[] in){
+    deflater.reset();
+    deflater.setInput(in);
+    deflater.finish();
+    byte[] out = new byte[in.length / 2 + 64];
+    int n = 0;
+    while(!deflater.finished()){
+      if(n == out.length)
+        out = Arrays.copyOf(out, out.length * 2);
+      n += deflater.deflate(out, n, out.length - n);
+    }
+    return Arrays.copyOf(out, n);
+  }
+
+  private static String payload(int size){
+    final Random r = new Random(size);
+    final StringBuilder sb = new StringBuilder(size + 100);
+    sb.append('[');
+    while(sb.length() < size)
+      sb.append(String.format("{\"id\":%d,\"customer\":\"customer %d\",\"region\":\"%s\",\"total\":%d.%02d},",
+        r.nextInt(1000000), r.nextInt(5000), r.nextBoolean() ? "north" : "south", r.nextInt(100000), r.nextInt(100)));
+    return sb.substring(0, size);
+  }
+
+  /**
+   * Plays the part of PHP, returning the nanoseconds per round trip
+   */
+  private static long client(InetSocketAddress addr, byte[] payload, int reps, boolean compress) throws IOException,
+    DataFormatException{
+    try(Socket sock = new Socket(addr.getAddress(), addr.getPort())){
+      sock.setTcpNoDelay(true);
+      final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(sock.getOutputStream(), 1 << 16));
+      final DataInputStream in = new DataInputStream(new BufferedInputStream(sock.getInputStream(), 1 << 16));
+      in.readUnsignedByte(); // greeting
+      if(compress){
+        out.write(bridge_NEGOTIATE);
+        out.writeInt(bridge_ACCEPT_DEFLATE);
+        out.writeInt(0); // Compress everything, the point is to find where that stops paying
+      }
+
+      final byte[] method = "toString".getBytes(Charsets.UTF_8);
+      final ByteArrayOutputStream request = new ByteArrayOutputStream(payload.length + 64);
+      final long start = System.nanoTime();
+      for(int i = 0; i < reps; i++){
+        request.reset();
+        final DataOutputStream req = new DataOutputStream(request);
+        if(0 == i){
+          req.write(bridge_SYMDEF);
+          req.writeInt(0);
+          req.writeInt(method.length);
+          req.write(method);
+        }else{
+          req.write(bridge_SYM);
+          req.writeInt(0);
+        }
+        req.write(bridge_S);
+        req.writeInt(payload.length);
+        req.write(payload);
+        req.write(bridge_INVOKE);
+        req.write(bridge_POP);
+
+        final byte[] plain = request.toByteArray();
+        if(compress){
+          final byte[] z = deflate(plain);
+          out.write(bridge_DEFLATE);
+          out.writeInt(z.length);
+          out.writeInt(plain.length);
+          out.write(z);
+        }else{
+          out.write(plain);
+        }
+        out.flush();
+
+        DataInputStream response = in;
+        int type = in.readUnsignedByte();
+        if(bridge_DEFLATE == type){
+          final byte[] z = new byte[in.readInt()];
+          final byte[] plainResponse = new byte[in.readInt()];
+          in.readFully(z);
+          inflater.reset();
+          inflater.setInput(z);
+          inflater.inflate(plainResponse);
+          response = new DataInputStream(new ByteArrayInputStream(plainResponse));
+          type = response.readUnsignedByte();
+        }
+        if(bridge_STR != type)
+          throw new IllegalStateException(String.format("Unexpected response: 0x%02x", type));
+        response.readFully(new byte[response.readInt()]);
+      }
+      final long took = System.nanoTime() - start;
+
+      out.write(bridge_CLOSE);
+      out.flush();
+      in.readUnsignedByte();
+      return took / reps;
+    }
+  }
+
+  public static void main(String[] args) throws Exception{
+    final int[] sizes = args.length > 0 ? Arrays.stream(args).mapToInt(Integer::parseInt).toArray()
+      : new int[] { 1 << 10, 4 << 10, 16 << 10, 64 << 10, 256 << 10, 1 << 20, 4 << 20, 16 << 20 };
+
+    try(BridgeServer server = new BridgeServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0),
+      SessionThreads.platformPerSession()).start()){
+      final InetSocketAddress addr = (InetSocketAddress) server.getLocalAddress();
+      client(addr, payload(1 << 16).getBytes(Charsets.UTF_8), 2000, false); // Warm up
+      client(addr, payload(1 << 16).getBytes(Charsets.UTF_8), 2000, true);
+
+      Integer crossover = null;
+      for(int size : sizes){
+        final byte[] payload = payload(size).getBytes(Charsets.UTF_8);
+        final int reps = (int) Math.max(5, BYTES_PER_RUN / size);
+        final long plain = client(addr, payload, reps, false);
+        final long compressed = client(addr, payload, reps, true);
+        System.out.println(String.format("%9d bytes  plain %10.1f us  deflate %10.1f us  ratio %4.1f", size, plain / 1e3,
+          compressed / 1e3, (double) payload.length / deflate(payload).length));
+        if(null == crossover && compressed < plain)
+          crossover = size;
+      }
+      System.out.println(null == crossover ? "Compression never paid off on this link"
+        : "Compression pays off from about " + crossover + " bytes");
+    }
+  }
+
+}
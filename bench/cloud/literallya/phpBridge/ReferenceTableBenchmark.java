@@ -0,0 +1,187 @@
+package cloud.literallya.phpBridge;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+
+import com.google.common.collect.BiMap;
+import com.google.common.collect.Maps;
+
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Compares the {@link ReferenceTable} a session keeps PHP's references in against the pair of maps it replaced.
+ * <br>
+ * Each run does what a session does with that many objects: gives each an ID, looks every ID up several times as PHP sends
+ * them back, sends each object again, then destroys them all. Reports the time per operation for each step, best of several
+ * runs, and the heap retained per live reference.
+ * <br>
+ * Usage: <code>ReferenceTableBenchmark [references...]</code>, defaults to 1K, 64K and 1M
+ */
+public class ReferenceTableBenchmark{
+
+  private static final int RUNS = 7;
+  private static final int LOOKUPS_PER_REFERENCE = 4;
+
+  private static long sink;
+
+  /**
+   * The way to keep references being measured
+   */
+  private interface Table{
+    long idFor(Object o);
+
+    Object get(long id);
+
+    void remove(long id);
+  }
+
+  private static final class Bimap implements Table{
+    private final BiMap<Object, Long> refs = new CompositeBiMap<>(Maps.newIdentityHashMap(), Maps.newHashMap());
+    private final Map<Long, Object> byId = refs.inverse();
+    private long lastId = 1;
+
+    @Override
+    public long idFor(Object o){
+      return refs.computeIfAbsent(o, v -> ++lastId);
+    }
+
+    @Override
+    public Object get(long id){
+      return byId.get(id);
+    }
+
+    @Override
+    public void remove(long id){
+      byId.remove(id);
+    }
+  }
+
+  private static final class Slab implements Table{
+    private final ReferenceTable refs = new ReferenceTable();
+
+    @Override
+    public long idFor(Object o){
+      return refs.idFor(o);
+    }
+
+    @Override
+    public Object get(long id){
+      return refs.get(id);
+    }
+
+    @Override
+    public void remove(long id){
+      refs.remove(id);
+    }
+  }
+
+  // Nanoseconds taken by each step of the last run
+  private static final String[] steps = { "assign", "lookup", "resend", "destroy" };
+
+  private static long[] run(Table table, Object[] objects, int[] order){
+    final long[] ids = new long[objects.length];
+    final long[] took = new long[steps.length];
+
+    long start = System.nanoTime();
+    for(int i = 0; i < objects.length; i++)
+      ids[i] = table.idFor(objects[i]);
+    took[0] = System.nanoTime() - start;
+
+    start = System.nanoTime();
+    for(int round = 0; round < LOOKUPS_PER_REFERENCE; round++)
+      for(int i : order)
+        sink += table.get(ids[i]).hashCode();
+    took[1] = System.nanoTime() - start;
+
+    start = System.nanoTime();
+    for(int i : order)
+      sink += table.idFor(objects[i]);
+    took[2] = System.nanoTime() - start;
+
+    start = System.nanoTime();
+    for(int i : order)
+      table.remove(ids[i]);
+    took[3] = System.nanoTime() - start;
+    return took;
+  }
+
+  private static long[] best(boolean slab, Object[] objects, int[] order){
+    final long[] best = new long[steps.length];
+    Arrays.fill(best, Long.MAX_VALUE);
+    for(int r = 0; r < RUNS; r++){ // The first runs double as warm-up
+      final long[] took = run(slab ? new Slab() : new Bimap(), objects, order);
+      for(int i = 0; i < best.length; i++)
+        best[i] = Math.min(best[i], took[i]);
+    }
+    return best;
+  }
+
+  private static long usedHeap(){
+    final Runtime rt = Runtime.getRuntime();
+    for(int i = 0; i < 3; i++)
+      System.gc();
+    return rt.totalMemory() - rt.freeMemory();
+  }
+
+  /**
+   * @return bytes retained per reference with all of them live
+   */
+  private static double retained(boolean slab, Object[] objects){
+    final long before = usedHeap();
+    final Table table = slab ? new Slab() : new Bimap();
+    for(Object o : objects)
+      table.idFor(o);
+    final long after = usedHeap();
+    sink += table.get(2).hashCode();
+    return (double) (after - before) / objects.length;
+  }
+
+  private static void measure(int references){
+    final Object[] objects = new Object[references];
+    for(int i = 0; i < references; i++)
+      objects[i] = new Object();
+    // PHP rarely hands IDs back in the order they were given out
+    final int[] order = new int[references];
+    Arrays.setAll(order, i -> i);
+    final Random r = new Random(references);
+    for(int i = references - 1; i > 0; i--){
+      final int j = r.nextInt(i + 1), t = order[i];
+      order[i] = order[j];
+      order[j] = t;
+    }
+
+    final long[] bimap = best(false, objects, order), slab = best(true, objects, order);
+    System.out.println(String.format("%,d references", references));
+    for(int i = 0; i < steps.length; i++){
+      final int ops = references * (1 == i ? LOOKUPS_PER_REFERENCE : 1);
+      System.out.println(String.format("  %-8s bimap %7.1f ns/op    table %7.1f ns/op", steps[i], (double) bimap[i] / ops,
+        (double) slab[i] / ops));
+    }
+    System.out.println(String.format("  retained bimap %5.1f bytes/ref    table %5.1f bytes/ref", retained(false, objects),
+      retained(true, objects)));
+  }
+
+  public static void main(String[] args){
+    final int[] sizes = args.length > 0 ? Arrays.stream(args).mapToInt(Integer::parseInt).toArray()
+      : new int[] { 1 << 10, 1 << 16, 1 << 20 };
+    for(int size : sizes)
+      measure(size);
+    if(42 == sink)
+      System.out.println();
+  }
+
+}
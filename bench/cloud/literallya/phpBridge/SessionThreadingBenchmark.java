@@ -0,0 +1,148 @@
+package cloud.literallya.phpBridge;
+
+import static cloud.literallya.phpBridge.ProtocolConstants.bridge_CLOSE;
+import static cloud.literallya.phpBridge.ProtocolConstants.bridge_INVOKE;
+import static cloud.literallya.phpBridge.ProtocolConstants.bridge_L;
+import static cloud.literallya.phpBridge.ProtocolConstants.bridge_POP;
+import static cloud.literallya.phpBridge.ProtocolConstants.bridge_S;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.base.Charsets;
+
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Compares running sessions on platform threads against virtual threads with many concurrent, mostly idle, PHP clients.
+ * <br>
+ * Every client connects to a {@link BridgeServer}, then makes a handful of calls with a think time between each, so the server
+ * side spends nearly all of its time blocked reading. Reports wall time, call latency and the peak number of live threads.
+ * <br>
+ * Needs Java 21 for the virtual thread runs and enough file descriptors for the biggest run (<code>ulimit -n</code>).
+ * Usage: <code>SessionThreadingBenchmark [sessions...]</code>, defaults to 1000 5000 10000
+ */
+public class SessionThreadingBenchmark{
+
+  private static final int CALLS_PER_SESSION = 5;
+  private static final long THINK_MILLIS = 200;
+
+  private static void writeString(DataOutputStream out, int type, String str) throws IOException{
+    final byte[] raw = str.getBytes(Charsets.UTF_8);
+    out.write(type);
+    out.writeInt(raw.length);
+    out.write(raw);
+  }
+
+  /**
+   * Plays the part of a PHP request, returning the average call latency in nanoseconds
+   */
+  private static long client(InetSocketAddress addr) throws IOException, InterruptedException{
+    try(Socket sock = new Socket(addr.getAddress(), addr.getPort())){
+      sock.setTcpNoDelay(true);
+      final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(sock.getOutputStream()));
+      final DataInputStream in = new DataInputStream(sock.getInputStream());
+      in.readUnsignedByte(); // greeting
+
+      long total = 0;
+      for(int i = 0; i < CALLS_PER_SESSION; i++){
+        Thread.sleep(THINK_MILLIS); // PHP doing its own work
+        final long start = System.nanoTime();
+        writeString(out, bridge_S, "nanoTime");
+        writeString(out, bridge_L, "java.lang.System");
+        out.write(bridge_INVOKE);
+        out.write(bridge_POP);
+        out.flush();
+        in.readUnsignedByte();
+        in.readLong();
+        total += System.nanoTime() - start;
+      }
+
+      out.write(bridge_CLOSE);
+      out.flush();
+      in.readUnsignedByte();
+      return total / CALLS_PER_SESSION;
+    }
+  }
+
+  private static void run(String name, ExecutorService sessionThreads, int sessions) throws Exception{
+    final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    System.gc();
+    threads.resetPeakThreadCount();
+
+    final long[] latencies = new long[sessions];
+    final AtomicInteger failures = new AtomicInteger();
+    final CountDownLatch done = new CountDownLatch(sessions);
+
+    try(BridgeServer server = new BridgeServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), sessionThreads)
+      .start()){
+      final InetSocketAddress addr = (InetSocketAddress) server.getLocalAddress();
+      final ExecutorService clients = SessionThreads.bestPerSession();
+      final long start = System.nanoTime();
+      for(int i = 0; i < sessions; i++){
+        final int idx = i;
+        clients.execute(() -> {
+          try{
+            latencies[idx] = client(addr);
+          }catch(Exception e){
+            failures.incrementAndGet();
+            latencies[idx] = Long.MAX_VALUE;
+          }finally{
+            done.countDown();
+          }
+        });
+      }
+      done.await();
+      final long wall = System.nanoTime() - start;
+      clients.shutdown();
+
+      Arrays.sort(latencies);
+      final int ok = sessions - failures.get();
+      System.out.println(String.format("%-9s %6d sessions  wall %6d ms  p50 %7.1f us  p99 %8.1f us  peak threads %6d  failed %d",
+        name, sessions, TimeUnit.NANOSECONDS.toMillis(wall),
+        ok > 0 ? latencies[ok / 2] / 1e3 : Double.NaN,
+        ok > 0 ? latencies[Math.min(ok - 1, (int) (ok * 0.99))] / 1e3 : Double.NaN,
+        threads.getPeakThreadCount(), failures.get()));
+    }
+  }
+
+  public static void main(String[] args) throws Exception{
+    final int[] sizes = args.length > 0 ? Arrays.stream(args).mapToInt(Integer::parseInt).toArray()
+      : new int[] { 1000, 5000, 10000 };
+
+    run("warm-up", SessionThreads.platformPerSession(), 200);
+    for(int sessions : sizes){
+      run("platform", SessionThreads.platformPerSession(), sessions);
+      if(SessionThreads.virtualThreadsAvailable())
+        run("virtual", SessionThreads.virtualPerSession(), sessions);
+      else
+        System.out.println("virtual   skipped, needs Java 21");
+    }
+  }
+
+}
@@ -0,0 +1,117 @@
+package cloud.literallya.phpBridge;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Charsets;
+
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Measures how fast {@link ValueWriter} encodes strings of 16 bytes, 1 KiB and 1 MiB, both pure ASCII and with a non-ASCII
+ * character a quarter of the way in, against encoding with {@link String#getBytes(java.nio.charset.Charset)} and copying the
+ * result into the buffer.
+ * <br>
+ * Usage: <code>StringEncodingBenchmark</code>
+ */
+public class StringEncodingBenchmark{
+
+  // Roughly how many bytes to encode per measurement
+  private static final long BYTES_PER_RUN = 256L << 20;
+  private static final int RUNS = 5;
+
+  private static final OutputStream nowhere = new OutputStream(){
+    @Override
+    public void write(int b){
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len){
+    }
+  };
+
+  private static long sink;
+
+  private static long viaWriter(String s, int reps) throws IOException{
+    final ValueWriter w = new ValueWriter(nowhere, new ReferenceTable());
+    final long start = System.nanoTime();
+    for(int i = 0; i < reps; i++){
+      w.sendValue(s);
+      w.flush();
+    }
+    final long took = System.nanoTime() - start;
+    w.release();
+    return took;
+  }
+
+  /**
+   * What the writer used to do
+   */
+  private static long viaGetBytes(String s, int reps){
+    ByteBuffer buf = BufferPool.acquire();
+    final long start = System.nanoTime();
+    for(int i = 0; i < reps; i++){
+      final byte[] raw = s.getBytes(Charsets.UTF_8);
+      if(buf.capacity() < raw.length + Integer.BYTES)
+        buf = ByteBuffer.allocate(raw.length + Integer.BYTES);
+      buf.clear();
+      buf.putInt(raw.length);
+      buf.put(raw);
+      sink += buf.position();
+    }
+    return System.nanoTime() - start;
+  }
+
+  private static void measure(String name, String s) throws IOException{
+    final int reps = (int) Math.max(1, BYTES_PER_RUN / s.length());
+    long writer = Long.MAX_VALUE, getBytes = Long.MAX_VALUE;
+    for(int run = 0; run < RUNS; run++){ // Best of, the first runs double as warm-up
+      writer = Math.min(writer, viaWriter(s, reps));
+      getBytes = Math.min(getBytes, viaGetBytes(s, reps));
+    }
+    System.out.println(String.format("%-14s writer %10.1f ns/op %7.0f MB/s    getBytes %10.1f ns/op %7.0f MB/s",
+      name, (double) writer / reps, mbPerSecond(s, reps, writer), (double) getBytes / reps, mbPerSecond(s, reps, getBytes)));
+  }
+
+  private static double mbPerSecond(String s, int reps, long nanos){
+    return (double) s.length() * reps / (1 << 20) / ((double) nanos / TimeUnit.SECONDS.toNanos(1));
+  }
+
+  private static String ascii(int length){
+    final StringBuilder sb = new StringBuilder(length);
+    while(sb.length() < length)
+      sb.append("abcdefghijklmnopqrstuvwxyz{\"k\":1}");
+    return sb.substring(0, length);
+  }
+
+  private static String mixed(int length){
+    final StringBuilder sb = new StringBuilder(ascii(length));
+    sb.setCharAt(length / 4, 'é');
+    return sb.toString();
+  }
+
+  public static void main(String[] args) throws IOException{
+    for(int length : new int[] { 16, 1024, 1 << 20 }){
+      measure("ascii " + length, ascii(length));
+      measure("mixed " + length, mixed(length));
+    }
+    if(0 == sink)
+      System.out.println(); // Keeps the baseline from being optimised away
+  }
+
+}
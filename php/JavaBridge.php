@@ -31,6 +31,20 @@ define('bridge_INVOKE', 0x84);
 define('bridge_POP', 0x85);
 define('bridge_DESTROY', 0x86);
 define('bridge_ACKEXCEPTION', 0x89);
+define('bridge_RESET', 0x8a);
+define('bridge_INVOKE_DISCARD', 0x8b);
+define('bridge_BATCH', 0x8c);
+define('bridge_INVOKE_ASYNC', 0x8d);
+define('bridge_AWAIT', 0x8e);
+define('bridge_AWAIT_ANY', 0x8f);
+define('bridge_INVOKE_CHAIN', 0x90);
+define('bridge_GET_MANY', 0x91);
+define('bridge_SET_MANY', 0x92);
+define('bridge_POP_VALUE', 0x93);
+define('bridge_ITER_NEXT_N', 0x94);
+define('bridge_DESTROY_MANY', 0x95);
+define('bridge_SCOPE_OPEN', 0x96);
+define('bridge_SCOPE_CLOSE', 0x97);
 define('bridge_Z', 0xc0);
 define('bridge_J', 0xc1);
 define('bridge_D', 0xc2);
@@ -42,35 +56,62 @@ define('bridge_EXCEPTION', 0xc7);
 define('bridge_MAP', 0xc8);
 define('bridge_MAP_END', 0xc9);
 define('bridge_REF', 0xca);
+define('bridge_SYMDEF', 0xcb);
+define('bridge_SYM', 0xcc);
+define('bridge_TUPLE', 0xcd);
+define('bridge_PREV', 0xce);
+define('bridge_PACKED', 0xcf);
+define('bridge_BIN', 0xd0);
+define('bridge_STR', 0xd1);
 define('bridge_CLOSE', 0x40);
+define('bridge_DEFLATE', 0x41);
+define('bridge_NEGOTIATE', 0x42);
 define('bridge_ITERABLE_TYPE', 0x01);
 define('bridge_INDEXED_TYPE', 0x03);
 define('bridge_MAP_TYPE', 0x05);
 define('bridge_ARRAY_TYPE', 0x08);
+define('bridge_PRIMITIVE_ARRAY_TYPE', 0x18);
+define('bridge_ACCEPT_DEFLATE', 0x01);
+
+/* Connectors */
+
+/**
+ * What LowLevelConnection needs from the underlying connection, writes are buffered until flushed
+ */
+interface BridgeTransport{
+  function isFresh(); //false if this is a persistent connection left over from an earlier request
+  function read($len);
+  function write($data);
+  function flush();
+  function addCloseHook();
+  function close();
+  function closeImpl();
+}
+
+function writeWhole($sock, $data){
+  $written = 0;
+  do{
+    $data = substr($data, $written );
+    $written = fwrite($sock, $data) or throwErr("failed writing data");
+  }while(strlen($data) > $written);
+}
 
 /* Http Connector */
 
-class ChunkedHttp{
+class ChunkedHttp implements BridgeTransport{
   private $sock;
   private $buffer = "";
   private $remaining = -2;
   public $isClosed = false;
+  public $owed = 0; //number of values Java still owes us
   private $closeHookCtr = 0;
   
-  private function writeWhole($data){
-    $written = 0;
-    do{
-      $data = substr($data, $written );
-      $written = fwrite($this->sock, $data) or throwErr("failed writing data");
-    }while(strlen($data) > $written);
-  }
-
   private function connect($args){
     $errno = 0; $errStr = "";
     $this->sock = fsockopen($args["host"], $args["port"]) or throwErr("could not open socket");
     stream_set_timeout($this->sock, 600);
 
-    $this->writeWhole(
+    writeWhole($this->sock,
         "PUT " . $args["servlet"] . " HTTP/1.1\r\n"
         . "Host: " . $args["host"] . ":" . $args["port"] . "\r\n"
         . "Transfer-Encoding: chunked\r\n"
@@ -94,6 +135,10 @@ class ChunkedHttp{
 //    printf("Begin Body...\n");
   }
 
+  public function isFresh(){
+    return true; //Every request is its own PUT
+  }
+
   private function nextChunk(){
     (!$this->isClosed) or throwErr("Connection Closed");
     $r = 0;
@@ -137,7 +182,7 @@ class ChunkedHttp{
     $len = strlen($b);
     if(0 == $len) return;
     $this->buffer = "";
-    $this->writeWhole( dechex($len) . "\r\n$b\r\n");
+    writeWhole($this->sock, dechex($len) . "\r\n$b\r\n");
     fflush($this->sock) or throwErr("flush failed");
   }
 
@@ -171,6 +216,405 @@ class ChunkedHttp{
   }
 }
 
+/* Raw Socket Connector, for talking to a BridgeServer directly without HTTP in between, over TCP or a unix domain socket */
+
+class BridgeSocket implements BridgeTransport{
+  private $sock;
+  private $outBuffer = "";
+  private $inBuffer = "";
+  public $isClosed = false;
+  public $owed = 0; //number of values Java still owes us
+  private $closeHookCtr = 0;
+  private $persistent;
+  private $fresh = true;
+
+  public function __construct($args, $unix = false){
+    $this->persistent = isset($args["persistent"]) && $args["persistent"];
+    !is_null($args) or throwErr("No bridge arguments!");
+    $errno = 0; $errStr = "";
+    if($unix){
+      $remote = "unix://" . $args["socket_path"];
+      $ctx = stream_context_create();
+    }else{
+      $remote = "tcp://" . $args["host"] . ":" . $args["port"];
+      $ctx = stream_context_create(array("socket" => array("tcp_nodelay" => true)));
+    }
+    $flags = STREAM_CLIENT_CONNECT | ($this->persistent ? STREAM_CLIENT_PERSISTENT : 0);
+    $this->sock = stream_socket_client($remote, $errno, $errStr, 30, $flags, $ctx)
+      or throwErr("could not open socket: $errStr");
+    stream_set_timeout($this->sock, 600);
+    //A reused persistent socket has already had data through it
+    $this->fresh = !$this->persistent || 0 == ftell($this->sock);
+  }
+
+  public function isFresh(){
+    return $this->fresh;
+  }
+
+  public function read($len){
+    (!$this->isClosed) or throwErr("Connection Closed");
+    while(strlen($this->inBuffer) < $len){
+      $data = fread($this->sock, max(8192, $len - strlen($this->inBuffer)));
+      if(false === $data || "" === $data) throwErr("connection closed");
+      $this->inBuffer .= $data;
+    }
+    $str = substr($this->inBuffer, 0, $len);
+    $this->inBuffer = (string) substr($this->inBuffer, $len);
+    return $str;
+  }
+
+  function flush(){
+    if("" === $this->outBuffer) return;
+    $b = $this->outBuffer;
+    $this->outBuffer = "";
+    writeWhole($this->sock, $b);
+  }
+
+  function write($data){
+    (!$this->isClosed) or throwErr("Connection Closed");
+    $this->outBuffer .= $data;
+  }
+
+  function addCloseHook(){
+    $this->closeHookCtr++;
+  }
+
+  /**
+   * Asks Java to forget this request's state, leaving the connection ready for the next request
+   */
+  private function resetForReuse(){
+    try{
+      $this->write(chr(bridge_RESET));
+      $this->flush();
+      return chr(bridge_V) === $this->read(1) && "" === $this->inBuffer;
+    }catch(Exception $e){
+      return false;
+    }
+  }
+
+  function closeImpl(){
+    if($this->isClosed) return;
+    if($this->persistent){
+      //Only reuse the connection if we know exactly where we are in the conversation
+      $reusable = 0 == $this->owed && $this->resetForReuse();
+      $this->isClosed = true;
+      if(!$reusable){
+        stream_socket_shutdown($this->sock, STREAM_SHUT_RDWR);
+        fclose($this->sock);
+      }
+      return;
+    }
+    $this->write(chr(bridge_CLOSE));
+    $this->flush();
+    $this->isClosed = true;
+    fread($this->sock, 1); //Far side will send it's close byte
+    fclose($this->sock);
+  }
+
+  function __destruct(){
+    $this->closeImpl();
+  }
+
+  function close(){
+    if((--$this->closeHookCtr) > 0) return; //Still outstanding close hooks
+    $this->closeImpl();
+  }
+}
+
+/**
+ * Talks to Java's SharedMemoryTransport through a slot file mapped into this process, so that calls cost no system calls
+ * while both sides are busy. Needs PHP 7.4 or later with the FFI extension enabled.
+ * Relies on x86-64 ordering plain loads and stores strongly enough for the ring positions.
+ */
+class SharedMemorySlot implements BridgeTransport{
+  //Must match SharedMemoryTransport and SharedRing
+  const MAGIC = 0x504a425249444745;
+  const READY = 1;
+  const ATTACHED = 2;
+  const FREE = 0;
+  const RINGS_AT = 64;
+  const TAIL_AT = 0;
+  const HEAD_AT = 64;
+  const DATA_AT = 128;
+  const SPINS = 1000;
+
+  private static $ffi = null;
+  private $lock;
+  private $map;
+  private $size;
+  private $longs;
+  private $bytes;
+  private $ringSize;
+  private $toJava;
+  private $toPhp;
+  private $outBuffer = "";
+  private $inBuffer = "";
+  public $isClosed = false;
+  public $owed = 0; //number of values Java still owes us
+  private $closeHookCtr = 0;
+
+  public function __construct($args){
+    extension_loaded("ffi") or throwErr("The shm transport needs the FFI extension");
+    if(null === self::$ffi)
+      self::$ffi = FFI::cdef("
+        int open(const char *pathname, int flags);
+        int close(int fd);
+        void *mmap(void *addr, size_t length, int prot, int flags, int fd, long offset);
+        int munmap(void *addr, size_t length);", "libc.so.6");
+    $dir = isset($args["shm_dir"]) ? $args["shm_dir"] : "/dev/shm/php-bridge";
+    $slots = glob($dir . "/slot-*") or throwErr("No shared memory slots in $dir");
+    shuffle($slots); //Spread the workers over the slots
+    $deadline = microtime(true) + 30;
+    while(!$this->claim($slots)){
+      microtime(true) < $deadline or throwErr("No free shared memory slot in $dir");
+      usleep(1000);
+    }
+  }
+
+  private function claim($slots){
+    foreach($slots as $file){
+      $lock = fopen($file, "r+");
+      if(false === $lock) continue;
+      if(flock($lock, LOCK_EX | LOCK_NB) && $this->attach($file)){
+        $this->lock = $lock;
+        return true;
+      }
+      fclose($lock); //Also releases the lock
+    }
+    return false;
+  }
+
+  private function attach($file){
+    clearstatcache(true, $file);
+    $size = filesize($file);
+    $fd = self::$ffi->open($file, 2); //O_RDWR
+    if($fd < 0) return false;
+    $map = self::$ffi->mmap(null, $size, 3, 1, $fd, 0); //PROT_READ | PROT_WRITE, MAP_SHARED
+    self::$ffi->close($fd); //The mapping outlives the descriptor
+    if(-1 == self::$ffi->cast("intptr_t", $map)->cdata) return false;
+    $longs = self::$ffi->cast("int64_t *", $map);
+    if(self::MAGIC != $longs[0] || self::READY != $longs[2]){ //Java has not got to this slot yet
+      self::$ffi->munmap($map, $size);
+      return false;
+    }
+    $this->map = $map;
+    $this->size = $size;
+    $this->longs = $longs;
+    $this->bytes = self::$ffi->cast("unsigned char *", $map);
+    $this->ringSize = $longs[1];
+    $this->toJava = self::RINGS_AT;
+    $this->toPhp = self::RINGS_AT + self::DATA_AT + $this->ringSize;
+    $longs[3] = getmypid();
+    $longs[2] = self::ATTACHED;
+    return true;
+  }
+
+  public function isFresh(){
+    return true; //Java starts a new session on the slot for every worker that takes it
+  }
+
+  /**
+   * Spins for a while, then sleeps, while waiting on Java
+   */
+  private function idle($round, $since){
+    if($round < self::SPINS) return;
+    usleep(min(1000, $round - self::SPINS + 1));
+    if(0 == $round % 1024 && microtime(true) - $since > 600) throwErr("Timed out waiting on Java");
+  }
+
+  public function read($len){
+    (!$this->isClosed) or throwErr("Connection Closed");
+    $ring = $this->toPhp;
+    $round = 0;
+    $since = microtime(true);
+    while(strlen($this->inBuffer) < $len){
+      $head = $this->longs[($ring + self::HEAD_AT) >> 3];
+      $n = $this->longs[($ring + self::TAIL_AT) >> 3] - $head;
+      if(0 == $n){
+        $this->idle($round++, $since);
+        continue;
+      }
+      $at = $head & ($this->ringSize - 1);
+      $first = min($n, $this->ringSize - $at);
+      $this->inBuffer .= FFI::string($this->bytes + $ring + self::DATA_AT + $at, $first);
+      if($first < $n) $this->inBuffer .= FFI::string($this->bytes + $ring + self::DATA_AT, $n - $first);
+      $this->longs[($ring + self::HEAD_AT) >> 3] = $head + $n;
+      $round = 0;
+    }
+    $str = substr($this->inBuffer, 0, $len);
+    $this->inBuffer = (string) substr($this->inBuffer, $len);
+    return $str;
+  }
+
+  function flush(){
+    if("" === $this->outBuffer) return;
+    $b = $this->outBuffer;
+    $this->outBuffer = "";
+    $ring = $this->toJava;
+    $tail = $this->longs[($ring + self::TAIL_AT) >> 3];
+    $off = 0;
+    $round = 0;
+    $since = microtime(true);
+    while($off < strlen($b)){
+      $free = $this->ringSize - ($tail - $this->longs[($ring + self::HEAD_AT) >> 3]);
+      if(0 == $free){
+        $this->idle($round++, $since);
+        continue;
+      }
+      $at = $tail & ($this->ringSize - 1);
+      $n = min(strlen($b) - $off, $free, $this->ringSize - $at);
+      FFI::memcpy($this->bytes + $ring + self::DATA_AT + $at, substr($b, $off, $n), $n);
+      $tail += $n;
+      $off += $n;
+      $this->longs[($ring + self::TAIL_AT) >> 3] = $tail; //Published after the data it covers
+      $round = 0;
+    }
+  }
+
+  function write($data){
+    (!$this->isClosed) or throwErr("Connection Closed");
+    $this->outBuffer .= $data;
+  }
+
+  function addCloseHook(){
+    $this->closeHookCtr++;
+  }
+
+  function closeImpl(){
+    if($this->isClosed) return;
+    try{
+      $this->write(chr(bridge_CLOSE));
+      $this->flush();
+      $this->read(1); //Far side will send it's close byte
+    }finally{
+      $this->isClosed = true;
+      //Hand the slot back, Java starts the next session once the owner is cleared
+      $this->longs[2] = self::FREE;
+      $this->longs[3] = 0;
+      self::$ffi->munmap($this->map, $this->size);
+      fclose($this->lock);
+    }
+  }
+
+  function __destruct(){
+    $this->closeImpl();
+  }
+
+  function close(){
+    if((--$this->closeHookCtr) > 0) return; //Still outstanding close hooks
+    $this->closeImpl();
+  }
+}
+
+/**
+ * Wraps another transport, compressing every flush of at least the threshold with raw deflate and inflating Java's
+ * compressed frames. Needs the zlib extension
+ */
+class CompressedTransport implements BridgeTransport{
+  private $inner;
+  private $threshold;
+  private $out = "";
+  private $in = ""; //Inflated but not yet read
+
+  public function __construct(BridgeTransport $inner, $threshold){
+    function_exists("gzdeflate") or throwErr("Compression needs the zlib extension");
+    $this->inner = $inner;
+    $this->threshold = $threshold;
+    //Let Java compress what it sends too, it goes out ahead of the first call
+    $inner->write(chr(bridge_NEGOTIATE) . pack("NN", bridge_ACCEPT_DEFLATE, $threshold));
+  }
+
+  //isClosed and owed live on the wrapped transport
+  public function __get($name){
+    return $this->inner->$name;
+  }
+
+  public function __set($name, $value){
+    $this->inner->$name = $value;
+  }
+
+  public function isFresh(){
+    return $this->inner->isFresh();
+  }
+
+  public function read($len){
+    if("" === $this->in) return $this->inner->read($len);
+    $str = substr($this->in, 0, $len);
+    $this->in = (string) substr($this->in, $len);
+    if(strlen($str) < $len) $str .= $this->inner->read($len - strlen($str));
+    return $str;
+  }
+
+  /**
+   * Reads a compressed frame, after its bridge_DEFLATE byte, so that what it inflates to is read next
+   */
+  public function inflateFrame(){
+    $lengths = unpack("Ncompressed/Ninflated", $this->inner->read(8));
+    $data = gzinflate($this->inner->read($lengths["compressed"]), $lengths["inflated"]);
+    (false !== $data && strlen($data) == $lengths["inflated"]) or throwErr("Corrupt compressed frame");
+    $this->in = $data . $this->in;
+  }
+
+  function write($data){
+    (!$this->inner->isClosed) or throwErr("Connection Closed");
+    $this->out .= $data;
+  }
+
+  function flush(){
+    $b = $this->out;
+    $this->out = "";
+    if(strlen($b) >= $this->threshold){
+      $z = gzdeflate($b, 1);
+      if(strlen($z) < strlen($b))
+        $b = chr(bridge_DEFLATE) . pack("NN", strlen($z), strlen($b)) . $z;
+    }
+    if("" !== $b) $this->inner->write($b);
+    $this->inner->flush();
+  }
+
+  function addCloseHook(){
+    $this->inner->addCloseHook();
+  }
+
+  //Anything still waiting goes ahead of the close, uncompressed
+  private function handOver(){
+    if("" === $this->out || $this->inner->isClosed) return;
+    $this->inner->write($this->out);
+    $this->out = "";
+  }
+
+  function closeImpl(){
+    $this->handOver();
+    $this->inner->closeImpl();
+  }
+
+  function __destruct(){
+    $this->closeImpl();
+  }
+
+  function close(){
+    $this->handOver();
+    $this->inner->close();
+  }
+}
+
+function openJavaTransport($args){
+  $transport = isset($args["transport"]) ? $args["transport"] : "http";
+  switch($transport){
+    case "http": $t = new ChunkedHttp($args); break;
+    case "socket": $t = new BridgeSocket($args); break;
+    case "unix":
+      isset($args["socket_path"]) or throwErr("The unix transport needs a socket_path");
+      $t = new BridgeSocket($args, true);
+      break;
+    case "shm": $t = new SharedMemorySlot($args); break;
+    default: throwErr("Unknown bridge transport: " . $transport);
+  }
+  if(!empty($args["compress_above"]))
+    $t = new CompressedTransport($t, (int) $args["compress_above"]);
+  return $t;
+}
+
 /**
  * Basis for all the other java objects for easy detections
  */
@@ -180,26 +624,51 @@ function getJavaConnection(){
 	global $JAVA_CONNECTION;
 	if(null != $JAVA_CONNECTION && !$JAVA_CONNECTION->isClosed()) return $JAVA_CONNECTION;
   global $JAVA_BRIDGE_ARGS;
-	$JAVA_CONNECTION = new LowLevelConnection(new ChunkedHttp($JAVA_BRIDGE_ARGS));
+	$JAVA_CONNECTION = new LowLevelConnection(openJavaTransport($JAVA_BRIDGE_ARGS));
 	$JAVA_CONNECTION->handshake();
 	return $JAVA_CONNECTION;
 }
 
+/**
+ * Java sends strings as UTF-8
+ */
+function fromJavaString($literal){
+  $encoding = mb_internal_encoding();
+  return "UTF-8" == $encoding ? $literal : mb_convert_encoding($literal, $encoding, "UTF-8");
+}
+
 function throwErr($msg){
   throw new Exception($msg);
 }
 
 class LowLevelConnection{
+  //Most IDs held back before they are sent to be destroyed
+  const DESTROY_BATCH = 256;
+  
   private $http;
   private $session;
   
   private $refNum = 1;
   private $mapDepth = 0;
   private $refs = array();
+  //Arrays Java has sent by value so far in the value being read, map ID => array
+  private $inMaps = array();
+  private $inMapDepth = 0;
   
   private $javaRefCounts = array();
+  //IDs no longer used here that Java has yet to be told of, ID => true
+  private $pendingDestroys = array();
+  //The scope each ID first seen inside one belongs to, ID => JavaScope
+  private $refScopes = array();
+  //Open scopes, innermost last
+  private $scopes = array();
+
+  //Names sent to Java as symbols, name => symbol number
+  private $outSymbols = array();
+  //Symbols Java has defined, symbol number => literal
+  private $inSymbols = array();
   
-  public function __construct(ChunkedHttp $http){
+  public function __construct(BridgeTransport $http){
     $this->http = $http;
     register_shutdown_function($this->getShutdownHook());
   }
@@ -227,15 +696,29 @@ class LowLevelConnection{
   	return $this->http->isClosed;
   }
   
+  /**
+   * @return the scope the ID belongs to, if any
+   */
   public function addRef($id){
-    if(isset($this->javaRefCounts[$id]))
+    if(isset($this->javaRefCounts[$id])){
       $this->javaRefCounts[$id]++;
-    else
+    }else{
       $this->javaRefCounts[$id] = 1;
+      if(isset($this->pendingDestroys[$id])){
+        //Java sent it again before hearing it was done with, so it is the same object as before
+        unset($this->pendingDestroys[$id]);
+      }else if(count($this->scopes) > 0){
+        $scope = end($this->scopes);
+        $scope->ids[] = $id;
+        $this->refScopes[$id] = $scope;
+      }
+    }
+    return isset($this->refScopes[$id]) ? $this->refScopes[$id] : null;
   }
   
-  public function clearRef($id){
+  public function clearRef($id, $scope = null){
     if($this->http->isClosed) return; //Don't care at this point
+    if(null !== $scope && $scope->closed) return; //Already gone with its scope
     if(!isset($this->javaRefCounts[$id])){
       syslog(LOG_WARNING, sprintf("Undefined ref-ID: $id"));
       return;
@@ -245,7 +728,43 @@ class LowLevelConnection{
     if((--$this->javaRefCounts[$id]) > 0) return;
     
     unset($this->javaRefCounts[$id]);
-    $this->writeLongImpl(bridge_DESTROY, $id);
+    $this->pendingDestroys[$id] = true;
+    if(count($this->pendingDestroys) >= self::DESTROY_BATCH)
+      $this->writeDestroys();
+  }
+  
+  /**
+   * Tells Java of every ID held back so far in one go
+   */
+  private function writeDestroys(){
+    if(0 == count($this->pendingDestroys)) return;
+    $ids = array_keys($this->pendingDestroys);
+    $this->pendingDestroys = array();
+    foreach($ids as $id)
+      unset($this->refScopes[$id]);
+    $this->http->write(chr(bridge_DESTROY_MANY) . pack("N", count($ids)) . pack("J*", ...$ids));
+  }
+  
+  /**
+   * Starts a scope, every Java object first received until it is closed is released with it
+   */
+  public function openScope(){
+    $this->scopes[] = new JavaScope();
+    $this->http->write(chr(bridge_SCOPE_OPEN));
+  }
+  
+  public function closeScope(){
+    $scope = array_pop($this->scopes);
+    if(null === $scope) throwErr("No Java scope open");
+    //Anything held back has to go first, Java may hand out the IDs of the scope again straight after
+    $this->writeDestroys();
+    $this->http->write(chr(bridge_SCOPE_CLOSE));
+    $scope->closed = true;
+    foreach($scope->ids as $id){
+      if(!isset($this->refScopes[$id]) || $this->refScopes[$id] !== $scope) continue;
+      unset($this->javaRefCounts[$id]);
+      unset($this->refScopes[$id]);
+    }
   }
   
   private function writePrimImpl($type, $val){
@@ -279,6 +798,18 @@ class LowLevelConnection{
     return $this->writeStringLiteral($str);
   }
   
+  /**
+   * Sends a method or field name, in full only the first time it is used in this connection
+   */
+  function writeSymbol($name){
+    if(isset($this->outSymbols[$name]))
+      return $this->writePrimImpl(bridge_SYM, pack("N", $this->outSymbols[$name]));
+    $symbol = count($this->outSymbols);
+    $this->outSymbols[$name] = $symbol;
+    $this->writePrimImpl(bridge_SYMDEF, pack("N", $symbol));
+    return $this->writeStringLiteral($name);
+  }
+  
   function writeClass($clazz){
     if(!is_string($clazz)) throw new Exception("Class name must be a string");
     if(strlen($clazz) == 0) throw new Exception("Class name must not be empty");
@@ -319,11 +850,63 @@ class LowLevelConnection{
     return $this->writeMapImpl($map, -($id + 1));
   }
   
+  function writeBinary($bytes){
+    $this->http->write(chr(bridge_BIN) . pack("N", strlen($bytes)));
+    $this->http->write($bytes);
+    return $this;
+  }
+  
+  function writePacked(JavaPacked $p){
+    $values = array_values($p->values);
+    if('Z' == $p->type)
+      $values = array_map('intval', array_map('boolval', $values));
+    $this->http->write(chr(bridge_PACKED) . $p->type . pack("N", count($values)));
+    if(count($values) > 0)
+      $this->http->write(pack(JavaPacked::$formats[$p->type] . "*", ...$values));
+    return $this;
+  }
+  
   function writeJavaRef(JavaObject $o){
     if(!($o instanceof JavaObject)) throwErr("Object not a java reference");
+    if(null !== $o->__scope && $o->__scope->closed) throwErr("Java object used after its scope was closed");
     return $this->writeLongImpl(bridge_A, $o->__id);
   }
   
+  function writeInvokeDiscard(){
+    $this->http->write(chr(bridge_INVOKE_DISCARD));
+    return $this;
+  }
+  
+  function writeBatch(){
+    $this->http->write(chr(bridge_BATCH));
+    return $this;
+  }
+  
+  function writeInvokeChain(){
+    $this->http->write(chr(bridge_INVOKE_CHAIN));
+    return $this;
+  }
+  
+  function writePrevious(){
+    $this->http->write(chr(bridge_PREV));
+    return $this;
+  }
+  
+  function writeInvokeAsync(){
+    $this->http->write(chr(bridge_INVOKE_ASYNC));
+    return $this;
+  }
+  
+  function writeAwait(){
+    $this->http->write(chr(bridge_AWAIT));
+    return $this;
+  }
+  
+  function writeAwaitAny(){
+    $this->http->write(chr(bridge_AWAIT_ANY));
+    return $this;
+  }
+  
   function writeInvoke(){
     $this->http->write(chr(bridge_INVOKE));
     return $this;
@@ -349,14 +932,36 @@ class LowLevelConnection{
     return $this;
   }
   
+  function writeGetMany(){
+    $this->http->write(chr(bridge_GET_MANY));
+    return $this;
+  }
+  
+  function writeSetMany(){
+    $this->http->write(chr(bridge_SET_MANY));
+    return $this;
+  }
+  
   function writePop(){
     $this->http->write(chr(bridge_POP));
+    $this->http->owed++;
+    return $this;
+  }
+  
+  function writeIterNextN(){
+    $this->http->write(chr(bridge_ITER_NEXT_N));
+    return $this;
+  }
+  
+  function writePopValue(){
+    $this->http->write(chr(bridge_POP_VALUE));
+    $this->http->owed++;
     return $this;
   }
   
   function ackException(){
   	$this->http->write(chr(bridge_ACKEXCEPTION));
-  	return this;
+  	return $this;
   }
   
   function writeValue($v){
@@ -370,6 +975,9 @@ class LowLevelConnection{
       
       case "object":
         if($v instanceof JavaObject) return $this->writeJavaRef($v);
+        if($v instanceof JavaPrevious) return $this->writePrevious();
+        if($v instanceof JavaPacked) return $this->writePacked($v);
+        if($v instanceof JavaBinary) return $this->writeBinary($v->bytes);
       case "resource":
       case "unknown type":
       default:
@@ -402,6 +1010,71 @@ class LowLevelConnection{
     return new JavaString($id, $literal);
   }
   
+  private function recvTuple(){
+    $count = $this->recvInt();
+    $values = array();
+    for($i = 0; $i < $count; $i++){
+      $type = ord($this->http->read(1));
+      //A failed slot holds its exception rather than throwing it
+      $values[] = bridge_EXCEPTION == $type ? new Exception($this->recvStringLiteral()) : $this->recvValue($type);
+    }
+    return $values;
+  }
+  
+  private function recvMap(){
+    $id = $this->recvLong();
+    $this->inMapDepth++;
+    $map = array();
+    while(bridge_MAP_END != ($type = ord($this->http->read(1)))){
+      $key = $this->recvValue($type);
+      if($key instanceof JavaString)
+        $key = $key->__toString();
+      $map[$key] = $this->recvValue(ord($this->http->read(1)));
+    }
+    if(0 == (--$this->inMapDepth))
+      $this->inMaps = array(); //Only valid within the one value
+    else
+      $this->inMaps[$id] = $map;
+    return $map;
+  }
+  
+  private function recvPacked(){
+    $type = $this->http->read(1);
+    $count = $this->recvInt();
+    if(0 == $count) return array();
+    $values = array_values(unpack(JavaPacked::$formats[$type] . "*", $this->http->read($count * JavaPacked::$sizes[$type])));
+    switch($type){ //pack has no signed Big Endian formats for these
+      case 'I':
+        foreach($values as &$v) if($v > 0x7fffffff) $v -= 0x100000000;
+        break;
+      case 'S':
+        foreach($values as &$v) if($v > 0x7fff) $v -= 0x10000;
+        break;
+      case 'Z':
+        $values = array_map('boolval', $values);
+        break;
+    }
+    return $values;
+  }
+  
+  /**
+   * A String sent by value, as a native string in the internal encoding
+   */
+  private function recvStringValue(){
+    return fromJavaString($this->recvStringLiteral());
+  }
+  
+  private function recvSymbolDefinition(){
+    $symbol = $this->recvInt();
+    return $this->inSymbols[$symbol] = $this->recvStringValue();
+  }
+  
+  private function recvSymbol(){
+    $symbol = $this->recvInt();
+    isset($this->inSymbols[$symbol]) or throwErr("Undefined symbol: $symbol");
+    return $this->inSymbols[$symbol];
+  }
+  
   private function recvJavaRef(){
     $flags = $this->recvInt();
     $id = $this->recvLong();
@@ -416,14 +1089,32 @@ class LowLevelConnection{
         return new JavaMap($id);
       case bridge_ARRAY_TYPE:
         return new JavaArray($id);
+      case bridge_PRIMITIVE_ARRAY_TYPE:
+        return new JavaPrimitiveArray($id);
       default:
         throw new Exception("Unknown type: " . $flags);
     }
   }
   
   private function recv(){
+    $this->writeDestroys(); //Java may as well forget them while it is at it
     $this->http->flush(); //Ensure that all out requests are flushed before trying to read
     $type = ord($this->http->read(1));
+    if(bridge_DEFLATE == $type){ //Java only ever compresses whole responses
+      $this->http->inflateFrame();
+      $type = ord($this->http->read(1));
+    }
+    if(bridge_EXCEPTION == $type){
+      $this->http->owed = 0; //Java drops everything after an exception, nothing more is coming
+      $this->ackException();
+      throw new Exception($this->recvStringLiteral());
+    }
+    $v = $this->recvValue($type);
+    if($this->http->owed > 0) $this->http->owed--;
+    return $v;
+  }
+
+  private function recvValue($type){
     switch($type){
       case bridge_V:
         return null;
@@ -435,11 +1126,25 @@ class LowLevelConnection{
         return $this->recvLong();
       case bridge_S:
         return $this->recvString();
+      case bridge_STR:
+        return $this->recvStringValue();
+      case bridge_TUPLE:
+        return $this->recvTuple();
+      case bridge_MAP:
+        return $this->recvMap();
+      case bridge_REF:
+        return $this->inMaps[$this->recvLong()];
+      case bridge_PACKED:
+        return $this->recvPacked();
+      case bridge_BIN:
+        $length = $this->recvInt();
+        return 0 == $length ? "" : $this->http->read($length);
+      case bridge_SYMDEF:
+        return $this->recvSymbolDefinition();
+      case bridge_SYM:
+        return $this->recvSymbol();
       case bridge_A:
         return $this->recvJavaRef();
-      case bridge_EXCEPTION:
-      	$this->ackException();
-        throw new Exception($this->recvStringLiteral());
       default:
       throw new Exception(sprintf("Unsupported Operation 0x%02x", $type));
     }
@@ -451,7 +1156,7 @@ class LowLevelConnection{
   
   public function get($o, $key){
     return $this
-      ->writeString($key)
+      ->writeSymbol($key)
       ->writeJavaRef($o)
       ->writeGet() //places the value on the stack
       ->writePop() //Will cause Java to write the value out to us
@@ -461,22 +1166,171 @@ class LowLevelConnection{
   public function set($o, $key, $value){
     $this
       ->writeValue($value)
-      ->writeString($key)
+      ->writeSymbol($key)
       ->writeJavaRef($o)
       ->writeSet();
   }
   
+  /**
+   * Takes up to $count elements from a Java Iterator in one round trip, with each Map.Entry as array(key, value) if $pairs
+   *
+   * @return array(whether there are more, array of the elements)
+   */
+  public function nextMany(JavaObject $it, $count, $pairs){
+    $got = $this
+      ->writeBool($pairs)
+      ->writeLong($count)
+      ->writeJavaRef($it)
+      ->writeIterNextN()
+      ->writePop()
+      ->recv();
+    $more = array_shift($got);
+    return array($more, $got);
+  }
+  
+  /**
+   * Gets the whole of a Java collection or array as a PHP array in one round trip, nested ones included
+   */
+  public function popValue(JavaObject $o){
+    return $this
+      ->writeJavaRef($o)
+      ->writePopValue()
+      ->recv();
+  }
+  
+  /**
+   * Same as invoke, except that a collection or array returned comes back as a PHP array, see popValue
+   */
+  public function invokeValue($o, $method, $args){
+    foreach($args as $v)
+      $this->writeValue($v);
+    return $this
+      ->writeSymbol($method)
+      ->writeJavaRef($o)
+      ->writeInvoke()
+      ->writePopValue()
+      ->recv();
+  }
+  
+  /**
+   * Reads all the fields in one round trip, returning an array of field name => value
+   */
+  public function getMany($o, $keys){
+    $keys = array_values($keys);
+    foreach($keys as $key)
+      $this->writeSymbol($key);
+    $values = $this
+      ->writeJavaRef($o)
+      ->writeGetMany()
+      ->writePop()
+      ->recv();
+    return array_combine($keys, $values);
+  }
+  
+  /**
+   * Sets every field in the array of field name => value, without waiting for Java
+   */
+  public function setMany($o, $values){
+    $this
+      ->writeMap($values)
+      ->writeJavaRef($o)
+      ->writeSetMany();
+  }
+  
   public function invoke($o, $method, $args){
     foreach($args as $v)
       $this->writeValue($v);
     return $this
-      ->writeString($method)
+      ->writeSymbol($method)
       ->writeJavaRef($o)
       ->writeInvoke()
       ->writePop()
       ->recv(); //even if the invocation returns void Java will still give us back a null, since we can't know that in general
   }
   
+  /**
+   * Invokes without waiting for, or getting, the result. Calls are only sent once something else needs an answer from Java,
+   * and if any of them fail that is when the exception is thrown, nothing sent after the failed call is acted on
+   */
+  public function invokeDiscard($o, $method, $args){
+    foreach($args as $v)
+      $this->writeValue($v);
+    $this
+      ->writeSymbol($method)
+      ->writeJavaRef($o)
+      ->writeInvokeDiscard();
+  }
+  
+  /**
+   * Starts the call in the background on the Java side, returning a reference to its future
+   */
+  public function invokeAsync($o, $method, $args){
+    foreach($args as $v)
+      $this->writeValue($v);
+    return $this
+      ->writeSymbol($method)
+      ->writeJavaRef($o)
+      ->writeInvokeAsync()
+      ->writePop()
+      ->recv();
+  }
+  
+  public function await(JavaObject $future){
+    return $this
+      ->writeJavaRef($future)
+      ->writeAwait()
+      ->writePop()
+      ->recv();
+  }
+  
+  public function awaitAny($futures){
+    foreach($futures as $f)
+      $this->writeJavaRef($f);
+    return $this
+      ->writeAwaitAny()
+      ->writePop()
+      ->recv();
+  }
+  
+  /**
+   * Makes every call in a single round trip, see java_batch
+   */
+  public function batch($calls){
+    foreach($calls as $call){
+      $args = isset($call[2]) ? $call[2] : array();
+      $this->writeLong(count($args));
+      foreach($args as $v)
+        $this->writeValue($v);
+      $this
+        ->writeSymbol($call[1])
+        ->writeJavaRef($call[0]);
+    }
+    return $this
+      ->writeBatch()
+      ->writePop()
+      ->recv();
+  }
+  
+  /**
+   * Makes the chain of calls in a single round trip, see java_chain
+   */
+  public function chain(JavaObject $o, $steps){
+    foreach($steps as $i => $step){
+      $this->writeLong(count($step[1]));
+      foreach($step[1] as $v)
+        $this->writeValue($v);
+      $this->writeSymbol($step[0]);
+      if(0 == $i)
+        $this->writeJavaRef($o);
+      else
+        $this->writePrevious();
+    }
+    return $this
+      ->writeInvokeChain()
+      ->writePop()
+      ->recv();
+  }
+  
   public function getClazz($clazz){
     return $this->writeClass($clazz)
       ->writePop()
@@ -502,7 +1356,9 @@ class LowLevelConnection{
   
   public function handshake(){
     //Other side sends a little magic to get the connection flowing
-    $this->session = $this->recv();
+    //A reused connection had its greeting long ago and was reset at the end of the last request
+    if($this->http->isFresh())
+      $this->session = $this->recv();
   }
 }
 
@@ -512,16 +1368,17 @@ class LowLevelConnection{
 class JavaObject extends JavaBase{
   public $__id;
   public $__conn;
+  public $__scope;
   
   public function  __construct($id){
     is_int($id) or throwErr("Invalid reference id");
     $this->__id = $id;
     $this->__conn = getJavaConnection();
-    $this->__conn->addRef($id);
+    $this->__scope = $this->__conn->addRef($id);
   }
   
   public function __destruct(){
-    $this->__conn->clearRef($this->__id);
+    $this->__conn->clearRef($this->__id, $this->__scope);
   }
   
   public function __get($key){
@@ -536,11 +1393,53 @@ class JavaObject extends JavaBase{
     return $this->__conn->invoke($this, $method, $args);
   }
   
+  /**
+   * Calls the method, returning any List, Set, Map or array it gives back as a PHP array rather than a reference. Takes the method
+   * name then its arguments e.g. <code>$rows = $dao->__value("findAll")</code>
+   */
+  public function __value($method){
+    return $this->__conn->invokeValue($this, $method, array_slice(func_get_args(), 1));
+  }
+  
+  /**
+   * Reads several fields at once e.g. <code>$dto->__getMany(array("name", "email"))</code> gives array("name" => ..., "email" => ...)
+   */
+  public function __getMany($keys){
+    return $this->__conn->getMany($this, $keys);
+  }
+  
+  /**
+   * Sets several fields at once from an array of field name => value, such as a submitted form
+   */
+  public function __setMany($values){
+    $this->__conn->setMany($this, $values);
+  }
+  
+  /**
+   * Calls the method without waiting for it, for when the result is not wanted. Takes the method name then its arguments
+   * e.g. <code>$list->__discard("add", $x)</code>. A failure is thrown by the next call that waits on Java, or if there is
+   * none before the request ends, only logged by Java
+   */
+  public function __discard($method){
+    $this->__conn->invokeDiscard($this, $method, array_slice(func_get_args(), 1));
+  }
+  
+  /**
+   * Starts the method running in the background in Java and returns straight away with a future for its result, to be
+   * passed to java_await. Takes the method name then its arguments e.g. <code>$f = $service->__async("fetch", $id)</code>
+   */
+  public function __async($method){
+    return $this->__conn->invokeAsync($this, $method, array_slice(func_get_args(), 1));
+  }
+  
   public function __toString(){
     return $this->__call("toString", []);
   }
 }
 
+/**
+ * A mutable CharSequence such as a StringBuilder, Strings themselves arrive as native strings
+ */
 class JavaString extends JavaObject{
   private $stringLiteral;
   
@@ -550,12 +1449,81 @@ class JavaString extends JavaObject{
   }
   
   public function __toString(){
-    return mb_convert_encoding ( $this->stringLiteral, mb_internal_encoding(), "UTF-8");
+    return fromJavaString($this->stringLiteral);
   }
 }
 
 class Marker{}
 
+/**
+ * A PHP string to be sent to Java as the bytes it holds, see java_binary
+ */
+final class JavaBinary{
+  public $bytes;
+  
+  public function __construct($bytes){
+    $this->bytes = (string) $bytes;
+  }
+}
+
+/**
+ * A PHP array to be sent to Java as a primitive array in one block, see java_packed
+ */
+final class JavaPacked{
+  //By JVM descriptor character
+  static $formats = array('Z' => 'C', 'B' => 'c', 'C' => 'n', 'S' => 'n', 'I' => 'N', 'J' => 'J', 'F' => 'G', 'D' => 'E');
+  static $sizes = array('Z' => 1, 'B' => 1, 'C' => 2, 'S' => 2, 'I' => 4, 'J' => 8, 'F' => 4, 'D' => 8);
+  static $types = array('boolean' => 'Z', 'byte' => 'B', 'char' => 'C', 'short' => 'S', 'int' => 'I', 'long' => 'J',
+    'float' => 'F', 'double' => 'D');
+  
+  public $type;
+  public $values;
+  
+  public function __construct($type, $values){
+    isset(self::$types[$type]) or throwErr("Not a primitive type: $type");
+    $this->type = self::$types[$type];
+    $this->values = $values;
+  }
+}
+
+/**
+ * Stands for the result of the previous call in a java_chain, when it is needed as an argument rather than the object
+ */
+final class JavaPrevious{}
+
+/**
+ * The Java objects first received while a java_scope was open, all released when it closes
+ */
+final class JavaScope{
+  public $ids = array();
+  public $closed = false;
+}
+
+/**
+ * Records calls to be made one on the result of another, see java_chain
+ */
+class JavaChain{
+  private $start;
+  private $steps = array();
+  
+  public function __construct(JavaObject $start){
+    $this->start = $start;
+  }
+  
+  public function __call($method, $args){
+    $this->steps[] = array($method, $args);
+    return $this;
+  }
+  
+  /**
+   * Makes every call recorded so far, returning the result of the last
+   */
+  public function __run(){
+    if(empty($this->steps)) throwErr("Nothing to call");
+    return $this->start->__conn->chain($this->start, $this->steps);
+  }
+}
+
 /**
  * General purpose Iterator
  * Because of rewind it is actually a wrapper around Iterable and it's iterators
@@ -566,19 +1534,28 @@ class Marker{}
  * Specialized iterator for lists (and arrays) where the key is a monatonic integer from zero to size - 1
  */
 class JavaIndexedIterator extends JavaBase implements Iterator{
+  //Elements are fetched from Java this many at first, doubling each time up to the most, so that stopping early costs little
+  const FIRST_FETCH = 16;
+  const MOST_FETCH = 1024;
+  
   protected $current = null;
   protected $index = -1;
 
   protected $iterable;
   protected $backingIterator;
+  protected $pairs = false;
+  
+  private $buffer = array();
+  private $buffered = 0;
+  private $more = true;
+  private $fetch = self::FIRST_FETCH;
 
   function __construct($iterable){ //Maps must pass in their entry sets, not themselves
     $this->iterable = $iterable;
-    $this->backingIterator = $iterable->iterator();
 
     // PHP does the reverse of Java, it advances THEN checks if that is a valid position
     // So tee-up the first value or get the end position constant set
-    $this->next();
+    $this->rewind();
   }
 
   public function current(){
@@ -591,15 +1568,27 @@ class JavaIndexedIterator extends JavaBase implements Iterator{
   }
 
   public function next(){
-    if($this->backingIterator->hasNext())
-      $this->current = $this->backingIterator->next();
-    else
-      $this->current = new Marker();
+    if($this->buffered == count($this->buffer))
+      $this->fill();
+    $this->current = $this->buffered < count($this->buffer) ? $this->buffer[$this->buffered++] : new Marker();
     $this->index++;
   }
+  
+  private function fill(){
+    $this->buffer = array();
+    $this->buffered = 0;
+    if(!$this->more) return;
+    list($this->more, $this->buffer) = $this->iterable->__conn->nextMany($this->backingIterator, $this->fetch, $this->pairs);
+    $this->fetch = min(2 * $this->fetch, self::MOST_FETCH);
+  }
 
   public function rewind(){
     $this->backingIterator = $this->iterable->iterator();
+    $this->index = -1;
+    $this->buffer = array();
+    $this->buffered = 0;
+    $this->more = true;
+    $this->fetch = self::FIRST_FETCH;
     $this->next();
   }
 
@@ -612,6 +1601,13 @@ class JavaIterable extends JavaObject implements IteratorAggregate{
   public function getIterator(){
     return new JavaIndexedIterator($this);
   }
+  
+  /**
+   * Copies the whole collection into a PHP array in one round trip, rather than an element at a time
+   */
+  public function __toArray(){
+    return $this->__conn->popValue($this);
+  }
 }
 
 class JavaList extends JavaIterable implements ArrayAccess{
@@ -638,6 +1634,7 @@ class JavaList extends JavaIterable implements ArrayAccess{
 
 class JavaArrayIterator implements Iterator{
   protected $index = 0;
+  protected $length = 0;
   protected $arr;
 
   function __construct($arr){ //Maps must pass in their entry sets, not themselves
@@ -658,10 +1655,11 @@ class JavaArrayIterator implements Iterator{
 
   public function rewind(){
     $this->index = 0;
+    $this->length = $this->arr->length;
   }
 
   public function valid(){
-    return $this->index < $this->arr->length;
+    return $this->index < $this->length;
   }
 }
 
@@ -687,24 +1685,26 @@ class JavaArray extends JavaIterable implements ArrayAccess{
   }
 }
 
+/**
+ * An array of a Java primitive type, iterated over by copying the whole of it in one round trip
+ */
+class JavaPrimitiveArray extends JavaArray{
+  public function getIterator(){
+    return new ArrayIterator($this->__toArray());
+  }
+}
+
 class JavaMapIterator extends JavaIndexedIterator implements Iterator{
+  protected $pairs = true; //Each entry arrives as array(key, value)
+  
   public function current(){
     $e = $this->current;
-    return (($e instanceof Marker) ? null : $e->getValue());
+    return (($e instanceof Marker) ? null : $e[1]);
   }
 
   public function key(){
     $e = $this->current;
-    return (($e instanceof Marker) ? null : $e->getKey());
-  }
-
-  public function rewind(){
-    $this->backingIterator = $this->iterable->iterator();
-    $this->next();
-  }
-
-  public function valid(){
-    return !($this->current instanceof Marker);
+    return (($e instanceof Marker) ? null : $e[0]);
   }
 }
 
@@ -730,14 +1730,7 @@ class JavaMap extends JavaIterable implements ArrayAccess{
   }
   
   public function __unwrap(){
-    $arr = array();
-    foreach($this as $k => $v){
-      if($k instanceof JavaString)
-        $arr[$k->__toString()] = $v;
-      else
-        $arr[$k] = $v;
-    }
-    return $arr;
+    return $this->__toArray();
   }
 }
 
@@ -749,3 +1742,85 @@ function java($clazz){
   return getJavaConnection()->getClazz($clazz);
 }
 
+/**
+ * Makes several independent calls in a single round trip. Each call is array($object, "method", array($args...)), the
+ * result has, in the same order, the value each call returned or the Exception it failed with
+ */
+function java_batch($calls){
+  return getJavaConnection()->batch($calls);
+}
+
+/**
+ * Wraps a PHP string to be passed to Java as a byte[] exactly as it is, rather than as a String, for images, serialized or
+ * compressed data and the like. A byte[] or ByteBuffer returned from Java arrives as a plain PHP string
+ */
+function java_binary($bytes){
+  return new JavaBinary($bytes);
+}
+
+/**
+ * Wraps a PHP array of numbers to be passed to Java as a primitive array of the given type, one of boolean, byte, char,
+ * short, int, long, float or double, e.g. <code>$stats->mean(java_packed("double", $samples))</code>
+ */
+function java_packed($type, $values){
+  return new JavaPacked($type, $values);
+}
+
+/**
+ * Calls methods one on the result of another in a single round trip, without the objects along the way ever being
+ * sent back. The calls are recorded on what this returns and made by __run(), which returns the result of the last
+ * e.g. <code>java_chain($svc)->getRepo()->findById(5)->getName()->__run()</code>
+ */
+function java_chain(JavaObject $o){
+  return new JavaChain($o);
+}
+
+/**
+ * The result of the previous call of a java_chain, for when it is an argument rather than the object called on
+ */
+function java_prev(){
+  static $prev = null;
+  return $prev ?: ($prev = new JavaPrevious());
+}
+
+/**
+ * Opens a scope. Every Java object first received until the matching java_scope_close is released when it closes, in a
+ * single message, however many PHP still holds. Using one of them after that is an error. Scopes nest
+ */
+function java_scope_open(){
+  getJavaConnection()->openScope();
+}
+
+function java_scope_close(){
+  getJavaConnection()->closeScope();
+}
+
+/**
+ * Calls the function inside a scope, returning what it returns, e.g. <code>$total = java_scoped(function() use ($rows){ ... })</code>
+ * Return plain PHP values from it, Java objects first received inside are released on the way out
+ */
+function java_scoped(callable $f){
+  java_scope_open();
+  try{
+    return $f();
+  }finally{
+    java_scope_close();
+  }
+}
+
+/**
+ * Waits for a call started with __async to finish and returns its result, or throws what it threw.
+ * Java can do nothing else for this request while waiting
+ */
+function java_await($future){
+  return getJavaConnection()->await($future);
+}
+
+/**
+ * Waits for the first of several calls started with __async to finish, returning its key in the array.
+ * The others carry on, and the finished one still has to be passed to java_await for its result
+ */
+function java_await_any($futures){
+  $keys = array_keys($futures);
+  return $keys[getJavaConnection()->awaitAny(array_values($futures))];
+}
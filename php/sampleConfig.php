@@ -24,7 +24,20 @@ $JAVA_BRIDGE_ARGS = array(
 		 // The port that the Java server is listening on
 		"port" => 8080,
 		 // The path to the bridge's servlet
-		"servlet" => "/backend/PhpBridge"
+		"servlet" => "/backend/PhpBridge",
+		 // "http" to go through the servlet, or "socket" to talk to a standalone BridgeServer on the port above
+		 // or "unix" to talk to a standalone BridgeServer listening on the unix domain socket below
+		 // or "shm" to talk to a SharedMemoryTransport through the slot files in shm_dir (needs the FFI extension)
+		"transport" => "http",
+		 // Only used by the "unix" transport, the PHP user needs read and write permission on this file
+		"socket_path" => "/run/php-bridge/bridge.sock",
+		 // Only used by the "shm" transport, the PHP user needs read and write permission on the slot files in it
+		"shm_dir" => "/dev/shm/php-bridge",
+		 // For the "socket" and "unix" transports, keep one connection per PHP worker open across requests
+		"persistent" => false,
+		 // Compress anything of at least this many bytes sent either way, 0 to never compress (needs zlib)
+		 // Only worth it when the link is slower than compressing, see CompressionBenchmark
+		"compress_above" => 0
 );
 
 // Only include the JavaBridge file AFTER the config is set
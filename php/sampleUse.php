@@ -80,4 +80,45 @@ printf("The simplename for String is %s\n",
 
 print("\n");
 
+// Independent calls can be made together in a single round trip
+// Each result is either the value returned or the Exception that call failed with
+list($size, $now) = java_batch(array(
+  array($javaMap, "size"),
+  array($System, "currentTimeMillis")
+));
+printf("The map has %d entries at %d\n", $size, $now);
+
+// A whole collection can be fetched as a PHP array in one round trip rather than an element at a time
+$copy = $javaMap->__toArray();
+$keys = $javaMap->__value("keySet"); // Or straight from a call
+printf("Copied %d entries with keys %s\n", count($copy), implode(", ", $keys));
+
+// Arrays of numbers go to Java, and come back, as one block rather than an element at a time
+$sum = java("java.util.Arrays")->stream(java_packed("double", array(1.5, 2.5, 3.0)))->sum();
+$squares = java("java.util.Arrays")->copyOf(java_packed("long", array(1, 4, 9)), 3)->__toArray();
+printf("Sum %.1f, squares %s\n", $sum, implode(", ", $squares));
+
+// Binary strings pass through untouched as byte[], and byte[] comes back as a plain string
+$encoded = java("java.util.Base64")->getEncoder()->encodeToString(java_binary("\x89PNG\r\n\x1a\n"));
+$decoded = java("java.util.Base64")->getDecoder()->decode($encoded);
+printf("%s round trips as %d bytes\n", $encoded, strlen($decoded));
+
+// A chain of calls, each on the result of the one before, costs a single round trip however long it is
+$firstKeyLength = java_chain($javaMap)->keySet()->iterator()->next()->length()->__run();
+printf("The first key is %d characters long\n", $firstKeyLength);
+
+// Slow calls can run in the background in Java while PHP gets on with something else
+$slow = $javaMap->__async("toString");
+$other = $javaMap->__async("size");
+$first = java_await_any(array("text" => $slow, "size" => $other)); // "text" or "size", whichever finished first
+printf("The map is %s\n", java_await($slow));
+
+// Temporary Java objects made in a loop can all be released at once when it is done
+$lengths = java_scoped(function() use ($javaMap){
+  $lengths = array();
+  foreach($javaMap->keySet() as $key)
+    $lengths[] = java("java.lang.StringBuilder")->new($key)->reverse()->length();
+  return $lengths;
+});
+
 // Happy coding!
@@ -0,0 +1,180 @@
+package cloud.literallya.phpBridge;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Drives a {@link Session} with Servlet 3.1 non-blocking I/O, so that no container thread is held while PHP is off computing
+ * its next call.
+ * <br>
+ * Input is fed to the session as the container reports it available and everything complete is acted on straight away.
+ * Responses are collected as the session flushes them and written out whenever the container says the output is ready.
+ */
+class AsyncSession implements ReadListener, WriteListener{
+
+  // None: the container's timeout is on the whole request, and a busy PHP worker may keep its session far longer than that.
+  // A PHP side that goes quiet is noticed by its own stream timeout, which closes the connection
+  static final long TIMEOUT_MILLIS = 0;
+
+  private final AsyncContext context;
+  private final ServletInputStream in;
+  private final ServletOutputStream out;
+  private final Session session;
+
+  private final byte[] readBuf = new byte[BufferPool.BUFFER_SIZE];
+  private final ByteArrayOutputStream pending = new ByteArrayOutputStream(BufferPool.BUFFER_SIZE);
+  private boolean flushWanted = false;
+  private boolean closed = false;
+  private boolean done = false;
+
+  /**
+   * What the session writes to, it only collects the output until the container is ready for it
+   */
+  private final OutputStream sink = new OutputStream(){
+    @Override
+    public void write(int b){
+      pending.write(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len){
+      pending.write(b, off, len);
+    }
+
+    @Override
+    public void flush() throws IOException{
+      flushWanted = true;
+      drain();
+    }
+  };
+
+  AsyncSession(AsyncContext context, ServletInputStream in, ServletOutputStream out, SessionHost host){
+    this.context = context;
+    this.in = in;
+    this.out = out;
+    this.session = host.newFedSession(sink);
+  }
+
+  synchronized void start() throws IOException{
+    context.setTimeout(TIMEOUT_MILLIS);
+    context.addListener(new AsyncListener(){
+      @Override
+      public void onComplete(AsyncEvent event){
+        synchronized(AsyncSession.this){
+          end(); // Completed by the container, perhaps because the connection went
+        }
+      }
+
+      @Override
+      public void onTimeout(AsyncEvent event){
+        synchronized(AsyncSession.this){
+          finish();
+        }
+      }
+
+      @Override
+      public void onError(AsyncEvent event){
+        synchronized(AsyncSession.this){
+          finish();
+        }
+      }
+
+      @Override
+      public void onStartAsync(AsyncEvent event){
+      }
+    });
+    out.setWriteListener(this);
+    session.open();
+    in.setReadListener(this);
+  }
+
+  @Override
+  public synchronized void onDataAvailable() throws IOException{
+    int r;
+    while(!closed && in.isReady() && (r = in.read(readBuf)) > -1){
+      session.feed(readBuf, 0, r);
+      closed = !session.pump();
+    }
+    if(closed)
+      drain();
+  }
+
+  @Override
+  public synchronized void onAllDataRead() throws IOException{
+    closed = true; // PHP hung up, with or without saying goodbye
+    drain();
+  }
+
+  @Override
+  public synchronized void onWritePossible() throws IOException{
+    drain();
+  }
+
+  @Override
+  public synchronized void onError(Throwable t){
+    finish();
+  }
+
+  /**
+   * Writes whatever the session has produced for as long as the container will take it, and completes the request once the
+   * session is closed and everything has been written
+   */
+  private void drain() throws IOException{
+    if(done || !out.isReady())
+      return;
+    if(pending.size() > 0){
+      pending.writeTo(out);
+      pending.reset();
+      if(!out.isReady())
+        return; // onWritePossible will be along once this has gone out
+    }
+    if(flushWanted){
+      flushWanted = false;
+      out.flush();
+    }
+    if(closed)
+      finish();
+  }
+
+  private void finish(){
+    if(end())
+      context.complete();
+  }
+
+  /**
+   * Releases the session, however the request ends
+   *
+   * @return false if it already had been
+   */
+  private boolean end(){
+    if(done)
+      return false;
+    done = true;
+    session.release();
+    return true;
+  }
+
+}
@@ -1,11 +1,14 @@
 package cloud.literallya.phpBridge;
 
-import static com.google.common.base.Preconditions.checkState;
-
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 
+import javax.servlet.AsyncContext;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
@@ -29,19 +32,77 @@ public class BridgeHead{
   public BridgeHead(){
   }
 
-  private final Dispatch dispatch = new Dispatch();
-  private final FieldGetterSetter attrs = new FieldGetterSetter();
+  private final SessionHost host = new SessionHost();
+
+  /**
+   * Sets the most Java objects each session may hold for PHP at once, 1048576 unless set.
+   * Past it PHP is sent an exception for any value that would need another object held, until it lets go of some
+   */
+  public BridgeHead limitReferences(int max){
+    host.limitReferences(max);
+    return this;
+  }
+
+  /**
+   * Logs the number and rough size of the Java objects held for PHP by all sessions, by class, at this interval. Zero, the
+   * default, turns it off
+   */
+  public BridgeHead reportReferencesEvery(long period, TimeUnit unit){
+    host.reportReferencesEvery(period, unit);
+    return this;
+  }
+
+  /**
+   * Stops what the sessions share, for when the servlet is taken out of service. No request may be handled after this
+   */
+  public void close(){
+    host.close();
+  }
 
   private static void checkIsLoopbackAddress(HttpServletRequest request) throws UnknownHostException{
-    checkState(InetAddress.getByName(request.getRemoteAddr()).isLoopbackAddress(),
-      "request from bad host: %s", request.getRemoteAddr());
+    SessionHost.checkIsLoopbackAddress(InetAddress.getByName(request.getRemoteAddr()));
   }
 
   public void handleRequest(HttpServletRequest req, HttpServletResponse resp) throws IOException{
     checkIsLoopbackAddress(req);
 
     resp.setStatus(200);
-    new Session(req.getInputStream(), resp.getOutputStream(), dispatch, attrs).handleConnection();
+    host.handleConnection(req.getInputStream(), resp.getOutputStream());
+  }
+
+  /**
+   * Like {@link #handleRequest(HttpServletRequest, HttpServletResponse)} but hands the blocking session off to the given
+   * executor and returns the container thread straight away. Meant for {@link SessionThreads#virtualPerSession() virtual
+   * threads}. The servlet must support async.
+   */
+  public void handleRequestOn(Executor executor, HttpServletRequest req, HttpServletResponse resp) throws IOException{
+    checkIsLoopbackAddress(req);
+
+    resp.setStatus(200);
+    final AsyncContext context = req.startAsync();
+    context.setTimeout(AsyncSession.TIMEOUT_MILLIS);
+    final InputStream in = req.getInputStream();
+    final OutputStream out = resp.getOutputStream();
+    executor.execute(() -> {
+      try{
+        host.handleConnection(in, out);
+      }catch(IOException e){
+        // PHP went away, nothing more can be done for this session
+      }finally{
+        context.complete();
+      }
+    });
+  }
+
+  /**
+   * Like {@link #handleRequest(HttpServletRequest, HttpServletResponse)} but returns immediately, leaving the session to be
+   * driven by non-blocking I/O callbacks. The servlet must support async.
+   */
+  public void handleRequestAsync(HttpServletRequest req, HttpServletResponse resp) throws IOException{
+    checkIsLoopbackAddress(req);
+
+    resp.setStatus(200);
+    new AsyncSession(req.startAsync(), req.getInputStream(), resp.getOutputStream(), host).start();
   }
 
 }
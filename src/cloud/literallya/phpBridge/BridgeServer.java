@@ -0,0 +1,256 @@
+package cloud.literallya.phpBridge;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Standalone bridge that speaks the protocol directly over TCP, without a servlet container, HTTP, or chunked encoding in
+ * between.
+ * <br>
+ * A single acceptor thread waits on a selector for connections, each accepted connection is switched to blocking mode and its
+ * session is run on a worker thread until PHP closes it. Like the servlet only loopback connections are accepted.
+ * <br>
+ * Alternatively the server can listen on a {@link #unixDomain(Path, Set, ExecutorService) unix domain socket},
+ * which skips the TCP stack entirely for same-host PHP workers. There access is controlled by the permissions of the socket
+ * file instead of the loopback check. This requires Java 16 or later, on older releases only TCP is available.
+ */
+public class BridgeServer implements Closeable{
+
+  public static final int DEFAULT_PORT = 8079;
+  // Room for a burst of PHP workers all connecting at once
+  private static final int BACKLOG = 1024;
+
+  /**
+   * Owner and group may connect, nobody else
+   */
+  public static final Set<PosixFilePermission> DEFAULT_SOCKET_PERMISSIONS = Collections.unmodifiableSet(EnumSet.of(
+    PosixFilePermission.OWNER_READ, PosixFilePermission.OWNER_WRITE,
+    PosixFilePermission.GROUP_READ, PosixFilePermission.GROUP_WRITE));
+
+  private final SessionHost host = new SessionHost();
+  private final ServerSocketChannel server;
+  private final Selector selector;
+  private final ExecutorService workers;
+  private final Path socketFile; // null for TCP
+
+  public BridgeServer(int port) throws IOException{
+    this(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), SessionThreads.platformPerSession());
+  }
+
+  public BridgeServer(SocketAddress bindTo, ExecutorService workers) throws IOException{
+    this(ServerSocketChannel.open(), bindTo, null, workers);
+  }
+
+  private BridgeServer(ServerSocketChannel server, SocketAddress bindTo, Path socketFile,
+    ExecutorService workers) throws IOException{
+    this.workers = checkNotNull(workers);
+    this.server = server;
+    this.socketFile = socketFile;
+
+    server.bind(bindTo, BACKLOG);
+    server.configureBlocking(false);
+    selector = Selector.open();
+    server.register(selector, SelectionKey.OP_ACCEPT);
+  }
+
+  /**
+   * Creates a server listening on a unix domain socket at the given path. Any stale socket file left at the path is replaced
+   * and the new one is restricted to the given permissions, which take the place of the loopback check.
+   * <br>
+   * The socket is bound inside a new directory only the owner can enter, restricted, then moved into place, so that nobody
+   * else can connect while it still has the permissions of the umask
+   *
+   * @throws UnsupportedOperationException
+   *           before Java 16
+   */
+  public static BridgeServer unixDomain(Path socketFile, Set<PosixFilePermission> permissions,
+    ExecutorService workers) throws IOException{
+    final Path target = socketFile.toAbsolutePath();
+    final Path staging = Files.createTempDirectory(target.getParent(), ".pb", PosixFilePermissions.asFileAttribute(
+      EnumSet.of(PosixFilePermission.OWNER_READ, PosixFilePermission.OWNER_WRITE, PosixFilePermission.OWNER_EXECUTE)));
+    final Path staged = staging.resolve("s"); // Short, socket paths are limited to about 100 bytes
+    try{
+      final BridgeServer server = new BridgeServer(UnixDomainSockets.openServer(), UnixDomainSockets.address(staged), target,
+        workers);
+      try{
+        Files.setPosixFilePermissions(staged, permissions);
+        Files.move(staged, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      }catch(IOException | RuntimeException e){
+        server.close();
+        throw e;
+      }
+      return server;
+    }finally{
+      Files.deleteIfExists(staged);
+      Files.deleteIfExists(staging);
+    }
+  }
+
+  public static BridgeServer unixDomain(Path socketFile) throws IOException{
+    return unixDomain(socketFile, DEFAULT_SOCKET_PERMISSIONS, SessionThreads.platformPerSession());
+  }
+
+  private boolean isUnixDomain(){
+    return null != socketFile;
+  }
+
+  public SocketAddress getLocalAddress() throws IOException{
+    // A unix socket was bound where it was staged, it is reached where it was moved to
+    return isUnixDomain() ? UnixDomainSockets.address(socketFile) : server.getLocalAddress();
+  }
+
+  /**
+   * Accepts connections until the server is {@link #close() closed}
+   */
+  public void run() throws IOException{
+    try{
+      while(server.isOpen()){
+        selector.select();
+        final Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while(keys.hasNext()){
+          final SelectionKey key = keys.next();
+          keys.remove();
+          if(key.isValid() && key.isAcceptable())
+            acceptAll();
+        }
+      }
+    }catch(ClosedSelectorException e){
+      // Closed from another thread, we are done
+    }
+  }
+
+  /**
+   * Sets the most Java objects each session may hold for PHP at once, 1048576 unless set.
+   * Past it PHP is sent an exception for any value that would need another object held, until it lets go of some
+   */
+  public BridgeServer limitReferences(int max){
+    host.limitReferences(max);
+    return this;
+  }
+
+  /**
+   * Logs the number and rough size of the Java objects held for PHP by all sessions, by class, at this interval. Zero, the
+   * default, turns it off
+   */
+  public BridgeServer reportReferencesEvery(long period, TimeUnit unit){
+    host.reportReferencesEvery(period, unit);
+    return this;
+  }
+
+  /**
+   * Runs the acceptor on its own daemon thread
+   */
+  public BridgeServer start(){
+    final Thread acceptor = new Thread(() -> {
+      try{
+        run();
+      }catch(IOException e){
+        throw new RuntimeException(e);
+      }
+    }, "php-bridge-acceptor");
+    acceptor.setDaemon(true);
+    acceptor.start();
+    return this;
+  }
+
+  private void acceptAll() throws IOException{
+    SocketChannel ch;
+    while(null != (ch = server.accept())){
+      final SocketChannel conn = ch;
+      try{
+        if(!isUnixDomain()){ // Unix sockets are protected by their file permissions instead
+          SessionHost.checkIsLoopbackAddress(conn.socket().getInetAddress());
+          conn.setOption(StandardSocketOptions.TCP_NODELAY, true); // Every flush is a whole response PHP is waiting on
+        }
+        conn.configureBlocking(true); // Sessions are simple blocking loops
+        workers.execute(() -> serve(conn));
+      }catch(RuntimeException e){
+        conn.close();
+      }
+    }
+  }
+
+  private void serve(SocketChannel conn){
+    try(SocketChannel c = conn){
+      if(isUnixDomain()){
+        host.handleConnection(Channels.newInputStream(c), Channels.newOutputStream(c));
+      }else{
+        final Socket sock = c.socket();
+        host.handleConnection(sock.getInputStream(), sock.getOutputStream());
+      }
+    }catch(IOException e){
+      // PHP went away, nothing more can be done for this session
+    }
+  }
+
+  @Override
+  public void close() throws IOException{
+    if(!server.isOpen())
+      return; // Closing twice does nothing, as Closeable asks
+    try{
+      server.close();
+    }finally{
+      selector.close();
+      workers.shutdown();
+      host.close();
+      if(isUnixDomain())
+        Files.deleteIfExists(socketFile);
+    }
+  }
+
+  /**
+   * Takes either a port number or the path of a unix domain socket, optionally followed by <code>virtual</code> to run each
+   * session on a virtual thread
+   */
+  public static void main(String[] args) throws IOException{
+    final String where = args.length > 0 ? args[0] : Integer.toString(DEFAULT_PORT);
+    final ExecutorService workers = args.length > 1 && "virtual".equals(args[1]) ? SessionThreads.virtualPerSession()
+      : SessionThreads.platformPerSession();
+    try(BridgeServer server = where.matches("\\d+")
+      ? new BridgeServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), Integer.parseInt(where)), workers)
+      : unixDomain(Paths.get(where), DEFAULT_SOCKET_PERMISSIONS, workers)){
+      server.run();
+    }
+  }
+
+}
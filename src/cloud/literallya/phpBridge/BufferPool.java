@@ -0,0 +1,57 @@
+package cloud.literallya.phpBridge;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * A small pool of fixed size heap buffers shared by all sessions so that each PHP request does not allocate fresh I/O buffers.
+ * <br>
+ * Buffers are always heap buffers so that their backing arrays can be handed straight to streams for bulk reads and writes
+ */
+final class BufferPool{
+
+  static final int BUFFER_SIZE = 8 * 1024;
+  private static final int MAX_POOLED = 64;
+
+  private static final BlockingQueue<ByteBuffer> pool = new ArrayBlockingQueue<>(MAX_POOLED);
+
+  private BufferPool(){
+  }
+
+  /**
+   * @return a cleared buffer of {@link #BUFFER_SIZE} bytes, either recycled or newly allocated
+   */
+  static ByteBuffer acquire(){
+    final ByteBuffer b = pool.poll();
+    if(null == b)
+      return ByteBuffer.allocate(BUFFER_SIZE);
+    b.clear();
+    return b;
+  }
+
+  /**
+   * Returns a buffer to the pool. Buffers that are not the standard size (e.g. ones that have been grown) are left for the
+   * garbage collector, as are any that would overflow the pool
+   */
+  static void release(ByteBuffer b){
+    if(null != b && b.capacity() == BUFFER_SIZE && b.hasArray())
+      pool.offer(b);
+  }
+
+}
@@ -0,0 +1,89 @@
+package cloud.literallya.phpBridge;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.common.primitives.Ints;
+
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * One call read off the value stack for {@link ProtocolConstants#bridge_BATCH} or
+ * {@link ProtocolConstants#bridge_INVOKE_CHAIN}, laid out as [argument count as a long, args..., method name, object]
+ */
+final class Call{
+
+  /**
+   * Stands in for the result of the previous step of a chain, wherever it appears in a call
+   *
+   * @see ProtocolConstants#bridge_PREV
+   */
+  static final Object PREVIOUS = new Object(){
+    @Override
+    public String toString(){
+      return "PREVIOUS";
+    }
+  };
+
+  private final Object target;
+  private final String method;
+  private final List<Object> args;
+
+  private Call(Object target, String method, List<Object> args){
+    this.target = target;
+    this.method = method;
+    this.args = args;
+  }
+
+  /**
+   * @return every call laid out in the values, in order
+   */
+  static List<Call> readAll(List<Object> values){
+    final List<Call> calls = new ArrayList<>();
+    for(int at = 0; at < values.size();){
+      final int argc = Ints.checkedCast((Long) values.get(at++));
+      final List<Object> args = new ArrayList<>(values.subList(at, at + argc));
+      args.replaceAll(ClassWrapper::unwrap);
+      at += argc;
+      final String method = (String) values.get(at++);
+      calls.add(new Call(values.get(at++), method, args));
+    }
+    return calls;
+  }
+
+  private boolean usesPrevious(){
+    return PREVIOUS == target || args.contains(PREVIOUS);
+  }
+
+  Object invoke(Dispatch dispatch){
+    checkArgument(!usesPrevious(), "No previous result for %s to use", method);
+    return dispatch.invoke(target, method, args);
+  }
+
+  /**
+   * Makes the call with the previous step's result in place of every {@link #PREVIOUS}
+   */
+  Object invokeAfter(Dispatch dispatch, Object previous){
+    if(!usesPrevious())
+      return dispatch.invoke(target, method, args);
+    final List<Object> resolved = new ArrayList<>(args);
+    resolved.replaceAll(o -> PREVIOUS == o ? previous : o);
+    return dispatch.invoke(PREVIOUS == target ? previous : target, method, resolved);
+  }
+
+}
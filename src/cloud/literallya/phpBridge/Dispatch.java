@@ -34,7 +34,6 @@ import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
-import com.google.common.base.Charsets;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
@@ -44,8 +43,6 @@ import com.google.common.collect.Iterators;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
-import com.google.common.hash.HashFunction;
-import com.google.common.hash.Hashing;
 import com.google.common.primitives.Primitives;
 
 /*
@@ -452,8 +449,6 @@ class Dispatch{
         .map(Dispatch::getType));
   }
 
-  private static final HashFunction sigHashF = Hashing.goodFastHash(32);
-
   private class CallSignature{
     private final String methodName;
     // private final boolean isStatic;
@@ -473,11 +468,8 @@ class Dispatch{
       checkArgument(!methodName.isEmpty());
       this.argTypes = argumentTypes.toArray(Class[]::new);
 
-      hash = sigHashF.newHasher()
-        .putString(methodName, Charsets.UTF_8)
-        .putInt(Arrays.hashCode(argTypes))
-        .putInt(targetType.hashCode())
-        .hash().asInt();
+      // Method names are usually symbols, which have already had their hash computed and cached
+      hash = 31 * (31 * methodName.hashCode() + Arrays.hashCode(argTypes)) + targetType.hashCode();
     }
 
     @Override
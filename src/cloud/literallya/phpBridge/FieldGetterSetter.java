@@ -5,9 +5,13 @@ import static com.google.common.base.Preconditions.checkNotNull;
 
 import java.lang.invoke.MethodHandle;
 import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Array;
 import java.lang.reflect.Field;
 import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
 import java.util.function.BiConsumer;
 import java.util.function.Function;
@@ -38,7 +42,7 @@ class FieldGetterSetter{
     .expireAfterAccess(60, TimeUnit.MINUTES)
     .build(CacheLoader.from(this::resolveGetter));
 
-  private final LoadingCache<FieldDescriptor, BiConsumer<Object, Object>> setterCache = CacheBuilder.newBuilder()
+  private final LoadingCache<FieldDescriptor, FieldSetter> setterCache = CacheBuilder.newBuilder()
     .expireAfterAccess(60, TimeUnit.MINUTES)
     .build(CacheLoader.from(this::resolveSetter));
 
@@ -53,6 +57,40 @@ class FieldGetterSetter{
     return getterCache.getUnchecked(new FieldDescriptor(getClassOfObject(o), field)).apply(o);
   }
 
+  /**
+   * Reads several fields of one object, looking its class up only once
+   *
+   * @return the values in the same order as the names
+   */
+  public Object[] getAll(Object o, List<String> fields){
+    final Class type = getClassOfObject(o);
+    final Object[] values = new Object[fields.size()];
+    for(int i = 0; i < values.length; i++)
+      values[i] = getterCache.getUnchecked(new FieldDescriptor(type, fields.get(i))).apply(o);
+    return values;
+  }
+
+  /**
+   * Sets several fields of one object. Every field is resolved and every value converted to its field's type before any is
+   * set, so a bad name or a value of the wrong type changes nothing
+   */
+  public void setAll(Object o, Map<?, ?> values){
+    final Class type = getClassOfObject(o);
+    final List<FieldSetter> setters = new ArrayList<>(values.size());
+    for(Object field : values.keySet()){
+      checkArgument(field instanceof String, "Not a field name: %s", field);
+      setters.add(setterCache.getUnchecked(new FieldDescriptor(type, (String) field)));
+    }
+    final Object[] converted = new Object[setters.size()];
+    int i = 0;
+    for(Object value : values.values()){
+      converted[i] = setters.get(i).convert(value);
+      i++;
+    }
+    for(i = 0; i < converted.length; i++)
+      setters.get(i).accept(o, converted[i]);
+  }
+
   private static Class getClassOfObject(Object o){
     checkNotNull(o);
     if(o instanceof ClassWrapper)
@@ -60,30 +98,13 @@ class FieldGetterSetter{
     return o.getClass();
   }
 
-  private BiConsumer<Object, Object> resolveSetter(FieldDescriptor desc){
+  private FieldSetter resolveSetter(FieldDescriptor desc){
     final Field f = desc.getField();
     if(Modifier.isFinal(f.getModifiers()))
       throw new UnsupportedOperationException("Final Field");
 
     try{
-      MethodHandle setter = MethodHandles.lookup().unreflectSetter(f);
-      if(Modifier.isStatic(f.getModifiers())){
-        return (o, v) -> {
-          try{
-            setter.invokeWithArguments(v);
-          }catch(Throwable e){
-            throw new RuntimeException(e);
-          }
-        };
-      }else{
-        return (o, v) -> {
-          try{
-            setter.invokeWithArguments(o, v);
-          }catch(Throwable e){
-            throw new RuntimeException(e);
-          }
-        };
-      }
+      return new FieldSetter(MethodHandles.lookup().unreflectSetter(f), f.getType(), Modifier.isStatic(f.getModifiers()));
     }catch(IllegalAccessException e){
       throw new RuntimeException(e);
     }
@@ -122,6 +143,47 @@ class FieldGetterSetter{
     }
   }
 
+  /**
+   * Sets one field, and can convert a value to the field's type on its own, the same way setting it would
+   */
+  private static final class FieldSetter implements BiConsumer<Object, Object>{
+    private final MethodHandle setter;
+    // Casts, unboxes and widens as setting does, then boxes the result back up
+    private final MethodHandle converter;
+    private final boolean isStatic;
+
+    FieldSetter(MethodHandle setter, Class<?> type, boolean isStatic){
+      this.setter = setter;
+      this.converter = MethodHandles.identity(Object.class)
+        .asType(MethodType.methodType(type, Object.class))
+        .asType(MethodType.methodType(Object.class, Object.class));
+      this.isStatic = isStatic;
+    }
+
+    /**
+     * @return the value as the field would hold it, failing if it can't
+     */
+    Object convert(Object v){
+      try{
+        return converter.invokeExact(v);
+      }catch(Throwable e){
+        throw new RuntimeException(e);
+      }
+    }
+
+    @Override
+    public void accept(Object o, Object v){
+      try{
+        if(isStatic)
+          setter.invokeWithArguments(v);
+        else
+          setter.invokeWithArguments(o, v);
+      }catch(Throwable e){
+        throw new RuntimeException(e);
+      }
+    }
+  }
+
   private class FieldDescriptor{
     private final Class type;
     private final String name;
@@ -0,0 +1,100 @@
+package cloud.literallya.phpBridge;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.google.common.collect.ImmutableSet;
+
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Rough heap sizes of objects, for reporting rather than accounting.
+ * <br>
+ * Assumes a 64 bit JVM with compressed references. An object counts its own fields and, for an array, its elements. A few
+ * common JDK collections also count a typical overhead per element, but not the elements themselves, which may well be
+ * shared. Those collections' size() is the only method ever called on the objects, it only reads a field, so this calls no
+ * code of the application's and is safe to use on objects another thread is using
+ */
+final class ObjectSizes{
+
+  private static final int HEADER = 12, ARRAY_HEADER = 16, REFERENCE = 4, ALIGNMENT = 8;
+  // What each element of a JDK collection costs beyond the element itself, such as a HashMap's entry and its table slot
+  private static final int COLLECTION_ELEMENT = 16, MAP_ENTRY = 40;
+
+  // Exactly these classes, not subclasses, whose size() just reads a field without locking. Wrappers, views and anything
+  // from outside the JDK could run any code at all, so are only counted by their own fields
+  private static final Set<Class<?>> MAPS = ImmutableSet.of(HashMap.class, LinkedHashMap.class, TreeMap.class,
+    IdentityHashMap.class, ConcurrentHashMap.class);
+  private static final Set<Class<?>> COLLECTIONS = ImmutableSet.of(ArrayList.class, LinkedList.class, ArrayDeque.class,
+    HashSet.class, LinkedHashSet.class, TreeSet.class);
+
+  private static final ClassValue<Long> shallowSizes = new ClassValue<Long>(){
+    @Override
+    protected Long computeValue(Class<?> type){
+      long size = HEADER;
+      for(Class<?> c = type; null != c; c = c.getSuperclass())
+        for(Field f : c.getDeclaredFields())
+          if(!Modifier.isStatic(f.getModifiers()))
+            size += fieldSize(f.getType());
+      return align(size);
+    }
+  };
+
+  private ObjectSizes(){
+  }
+
+  private static long align(long size){
+    return (size + ALIGNMENT - 1) & -ALIGNMENT;
+  }
+
+  private static int fieldSize(Class<?> type){
+    if(!type.isPrimitive())
+      return REFERENCE;
+    return PackedArrays.elementSize(PackedArrays.typeCodeOf(type));
+  }
+
+  /**
+   * @return about how many bytes the object takes up
+   */
+  static long estimate(Object o){
+    final Class<?> type = o.getClass();
+    if(type.isArray())
+      return align(ARRAY_HEADER + (long) Array.getLength(o) * fieldSize(type.getComponentType()));
+
+    long size = shallowSizes.get(type);
+    if(MAPS.contains(type))
+      size += (long) ((Map<?, ?>) o).size() * MAP_ENTRY;
+    else if(COLLECTIONS.contains(type))
+      size += (long) ((Collection<?>) o).size() * COLLECTION_ELEMENT;
+    return size;
+  }
+
+}
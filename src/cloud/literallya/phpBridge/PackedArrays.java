@@ -0,0 +1,151 @@
+package cloud.literallya.phpBridge;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
+
+import com.google.common.collect.ImmutableBiMap;
+
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Copies primitive arrays to and from their {@link ProtocolConstants#bridge_PACKED} form, a block of Big Endian elements,
+ * using the buffer's bulk views rather than boxing each element.
+ */
+@SuppressWarnings("rawtypes")
+final class PackedArrays{
+
+  // Element types by their JVM descriptor character
+  private static final ImmutableBiMap<Character, Class> types = ImmutableBiMap.<Character, Class> builder()
+    .put('Z', boolean.class)
+    .put('B', byte.class)
+    .put('C', char.class)
+    .put('S', short.class)
+    .put('I', int.class)
+    .put('J', long.class)
+    .put('F', float.class)
+    .put('D', double.class)
+    .build();
+
+  private PackedArrays(){
+  }
+
+  static boolean isPacked(Object o){
+    return null != o && o.getClass().isArray() && o.getClass().getComponentType().isPrimitive();
+  }
+
+  static int typeCode(Object array){
+    return typeCodeOf(array.getClass().getComponentType());
+  }
+
+  static int typeCodeOf(Class<?> primitive){
+    return types.inverse().get(primitive);
+  }
+
+  static int elementSize(int typeCode){
+    switch(typeCode){
+      case 'Z':
+      case 'B':
+        return 1;
+      case 'C':
+      case 'S':
+        return 2;
+      case 'I':
+      case 'F':
+        return 4;
+      case 'J':
+      case 'D':
+        return 8;
+      default:
+        throw new IllegalArgumentException("Not a primitive type: " + typeCode);
+    }
+  }
+
+  static Object newArray(int typeCode, int length){
+    final Class type = types.get((char) typeCode);
+    checkArgument(null != type, "Not a primitive type: %s", typeCode);
+    checkArgument(length >= 0, "Negative length");
+    return Array.newInstance(type, length);
+  }
+
+  /**
+   * Copies as many elements as the buffer has room for, starting at <code>from</code>
+   *
+   * @return the number copied
+   */
+  static int put(ByteBuffer buf, Object array, int from){
+    final int n = Math.min(Array.getLength(array) - from, buf.remaining() / elementSize(typeCode(array)));
+    if(array instanceof byte[]){
+      buf.put((byte[]) array, from, n);
+      return n;
+    }else if(array instanceof boolean[]){
+      final boolean[] a = (boolean[]) array;
+      for(int i = from; i < from + n; i++)
+        buf.put((byte) (a[i] ? 1 : 0));
+      return n;
+    }
+
+    if(array instanceof long[])
+      buf.asLongBuffer().put((long[]) array, from, n);
+    else if(array instanceof double[])
+      buf.asDoubleBuffer().put((double[]) array, from, n);
+    else if(array instanceof int[])
+      buf.asIntBuffer().put((int[]) array, from, n);
+    else if(array instanceof float[])
+      buf.asFloatBuffer().put((float[]) array, from, n);
+    else if(array instanceof short[])
+      buf.asShortBuffer().put((short[]) array, from, n);
+    else
+      buf.asCharBuffer().put((char[]) array, from, n);
+    buf.position(buf.position() + n * elementSize(typeCode(array)));
+    return n;
+  }
+
+  /**
+   * Fills in as many elements as the buffer holds, starting at <code>from</code>
+   *
+   * @return the number filled in
+   */
+  static int get(ByteBuffer buf, Object array, int from){
+    final int n = Math.min(Array.getLength(array) - from, buf.remaining() / elementSize(typeCode(array)));
+    if(array instanceof byte[]){
+      buf.get((byte[]) array, from, n);
+      return n;
+    }else if(array instanceof boolean[]){
+      final boolean[] a = (boolean[]) array;
+      for(int i = from; i < from + n; i++)
+        a[i] = 0 != buf.get();
+      return n;
+    }
+
+    if(array instanceof long[])
+      buf.asLongBuffer().get((long[]) array, from, n);
+    else if(array instanceof double[])
+      buf.asDoubleBuffer().get((double[]) array, from, n);
+    else if(array instanceof int[])
+      buf.asIntBuffer().get((int[]) array, from, n);
+    else if(array instanceof float[])
+      buf.asFloatBuffer().get((float[]) array, from, n);
+    else if(array instanceof short[])
+      buf.asShortBuffer().get((short[]) array, from, n);
+    else
+      buf.asCharBuffer().get((char[]) array, from, n);
+    buf.position(buf.position() + n * elementSize(typeCode(array)));
+    return n;
+  }
+
+}
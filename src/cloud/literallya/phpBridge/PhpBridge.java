@@ -1,6 +1,8 @@
 package cloud.literallya.phpBridge;
 
 import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import javax.servlet.ServletException;
 import javax.servlet.annotation.WebServlet;
@@ -25,20 +27,57 @@ import javax.servlet.http.HttpServletResponse;
 
 /**
  * Servlet example of the PHP Bridge
- * 
+ * <br>
+ * Setting the init parameter <code>mode</code> to <code>async</code> drives sessions with non-blocking I/O instead of holding
+ * a container thread for the whole life of each PHP request. Setting it to <code>virtual</code> instead runs each session on
+ * its own virtual thread (Java 21 or later)
+ * <br>
+ * <code>maxReferences</code> caps the Java objects each PHP request may hold at once, and <code>referenceReportSeconds</code>
+ * logs what all of them hold, by class, that often
  */
-@WebServlet("/PhpBridge")
+@WebServlet(urlPatterns = "/PhpBridge", asyncSupported = true)
 public class PhpBridge extends HttpServlet{
   private static final long serialVersionUID = 1L;
 
-  private static final BridgeHead bridge = new BridgeHead();
+  // One per servlet, as it is closed when the servlet is destroyed
+  private final BridgeHead bridge = new BridgeHead();
+
+  private boolean async = false;
+  private ExecutorService sessionThreads = null;
+
+  @Override
+  public void init() throws ServletException{
+    final String mode = getInitParameter("mode");
+    async = "async".equals(mode);
+    if("virtual".equals(mode))
+      sessionThreads = SessionThreads.virtualPerSession();
+
+    final String maxReferences = getInitParameter("maxReferences");
+    if(null != maxReferences)
+      bridge.limitReferences(Integer.parseInt(maxReferences));
+    final String reportSeconds = getInitParameter("referenceReportSeconds");
+    if(null != reportSeconds)
+      bridge.reportReferencesEvery(Long.parseLong(reportSeconds), TimeUnit.SECONDS);
+  }
+
+  @Override
+  public void destroy(){
+    bridge.close();
+    if(null != sessionThreads)
+      sessionThreads.shutdown();
+  }
 
   /**
    * This is the implementation. The Bridge uses Put requests
    */
   @Override
   protected void doPut(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException{
-    bridge.handleRequest(req, resp);
+    if(async)
+      bridge.handleRequestAsync(req, resp);
+    else if(null != sessionThreads)
+      bridge.handleRequestOn(sessionThreads, req, resp);
+    else
+      bridge.handleRequest(req, resp);
   }
 
   /*
@@ -63,8 +63,66 @@ class ProtocolConstants{
     bridge_DESTROY = 0x86,
 
     // Acknowledge an exception and start the protocol flowing again
+    // Until then nouns are dropped and every verb other than this, DESTROY and RESET is ignored, so that whatever PHP had
+    // already sent after the call that failed is not acted on
     bridge_ACKEXCEPTION = 0x89,
 
+    // Forgets all per-request state (object IDs, the value stack, any unacknowledged exception) without closing the connection
+    // so that it can be reused by the next PHP request. Java answers with a Void once the reset is done
+    bridge_RESET = 0x8a,
+
+    // Same as INVOKE except that the result is dropped rather than left on the stack, so PHP need not wait for it
+    // A failure is sent straight away as usual and read by PHP the next time it waits on a value
+    bridge_INVOKE_DISCARD = 0x8b,
+
+    // Runs several independent calls in order, replacing the whole stack with a Tuple of their results
+    // Expects the stack to be a run of calls, each laid out as [argument count as a long, args..., method name, object]
+    // A call that fails puts its exception in its slot of the Tuple without stopping the rest
+    bridge_BATCH = 0x8c,
+
+    // Same as INVOKE except that the call is run in the background, leaving a future for its result on the stack
+    bridge_INVOKE_ASYNC = 0x8d,
+
+    // Waits for a future from INVOKE_ASYNC and replaces it with its result, or fails as the call did
+    // expects the stack to be [future]
+    bridge_AWAIT = 0x8e,
+
+    // Waits for the first of several futures to finish, replacing them all with its index as a long
+    // expects the stack to be [futures...], the futures themselves are left alone
+    bridge_AWAIT_ANY = 0x8f,
+
+    // Runs a chain of calls, each on the result of the one before, replacing the whole stack with the result of the last
+    // Expects the stack laid out as for BATCH, with a PREV wherever the previous call's result goes (usually the object)
+    // None of the results along the way are given IDs, and the first call to fail fails the chain
+    bridge_INVOKE_CHAIN = 0x90,
+
+    // Reads several fields of one object, replacing the whole stack with a Tuple of their values
+    // expects the stack to be [field names..., object]
+    bridge_GET_MANY = 0x91,
+
+    // Sets several fields of one object from a PHP array of field name => value
+    // expects the stack to be [map, object], no field is set if any of the names is bad
+    bridge_SET_MANY = 0x92,
+
+    // Same as POP except that Lists, Sets, Maps and arrays, and any inside them, are sent as a bridge_MAP rather than a reference
+    // A collection met again is sent as a bridge_REF to the first, one that contains itself can not be sent this way
+    bridge_POP_VALUE = 0x93,
+
+    // Advances an Iterator up to count times, replacing the whole stack with a Tuple of whether it has more then the elements
+    // Expects the stack to be [pairs (boolean), count (long), iterator], if pairs is true each Map.Entry is sent as a Tuple of
+    // its key and value
+    bridge_ITER_NEXT_N = 0x94,
+
+    // Same as DESTROY for several objects, followed by a 32 bit count then that many 64 bit object IDs
+    bridge_DESTROY_MANY = 0x95,
+
+    // Starts a scope, scopes nest. Every object first given an ID while it is the innermost scope belongs to it
+    bridge_SCOPE_OPEN = 0x96,
+
+    // Forgets every object of the innermost scope that PHP has not already destroyed, and ends the scope
+    // PHP must not use nor DESTROY any of their IDs afterwards, Java may hand them out again
+    bridge_SCOPE_CLOSE = 0x97,
+
     /* Nouns */
 
     // Prims
@@ -108,10 +166,49 @@ class ProtocolConstants{
     bridge_MAP_END = 0xc9,
 
     // A reference to a previous PHP array, followed by a 64 bit Big Endian literal
+    // Java -> PHP only ever refers to an array already sent in full, since PHP arrays can not contain themselves
     // Note: Refs are only considered valid valid within a single recursive map structure
     bridge_REF = 0xca,
 
-    bridge_CLOSE = 0x40; // Closes the connection gracefully, nothing is expected after this
+    // Defines a symbol, a String that is likely to be sent again (method and field names, short returned Strings)
+    // Followed by a 32 bit Big Endian symbol number, then the same as bridge_STR. Symbols are plain values both ways
+    // Symbols are numbered from 0 per session and direction, and forgotten on reset
+    bridge_SYMDEF = 0xcb,
+
+    // A String previously defined with bridge_SYMDEF, followed by its 32 bit Big Endian symbol number
+    bridge_SYM = 0xcc,
+
+    // Several values at once, only sent Java -> PHP
+    // Followed by a 32 bit Big Endian count then that many values, any of which may be a bridge_EXCEPTION in place of a value
+    bridge_TUPLE = 0xcd,
+
+    // The result of the previous call of an INVOKE_CHAIN, only sent PHP -> Java and only within a chain, no literal follows
+    bridge_PREV = 0xce,
+
+    // A primitive array, sent both ways. Java -> PHP only when sending by value (POP_VALUE)
+    // Followed by the element type as its JVM descriptor character (one of ZBCSIJFD), a 32 bit Big Endian length and that many
+    // Big Endian elements, booleans as a byte each
+    bridge_PACKED = 0xcf,
+
+    // Raw bytes, a byte[] in Java and a string in PHP, with no character encoding either way. Sent both ways
+    // Followed by a 32 bit Big Endian length and that many bytes. A ByteBuffer is sent as what it has remaining
+    bridge_BIN = 0xd0,
+
+    // A String sent as a plain value, with no object ID, so PHP gets a native string and has nothing to destroy
+    // Only sent Java -> PHP, where it is used for every String. bridge_S is kept for mutable CharSequences such as StringBuilder
+    // Followed by a 32 bit Big Endian length and the *unterminated* utf-8 data, the same as bridge_S from PHP
+    bridge_STR = 0xd1,
+
+    bridge_CLOSE = 0x40, // Closes the connection gracefully, nothing is expected after this
+
+    // A compressed run of nouns and verbs, to be acted on exactly as if they had been sent uncompressed in its place
+    // Followed by a 32 bit Big Endian compressed length, a 32 bit Big Endian uncompressed length and the raw deflate data
+    // PHP may always send these, Java only sends them once PHP has negotiated compression, and only at the start of a flush
+    bridge_DEFLATE = 0x41,
+
+    // Sent by PHP to say what it can accept, followed by 32 bits of Big Endian negotiation flags (below)
+    // and a 32 bit Big Endian size, flushes smaller than this are never compressed. Reset forgets what was negotiated
+    bridge_NEGOTIATE = 0x42;
 
   /*
    * Flags
@@ -123,7 +220,12 @@ class ProtocolConstants{
     bridge_INDEXED_TYPE = (1 << 1) | bridge_ITERABLE_TYPE, // All indexed types MUST be iterable
     // Map is exclusive with indexed. Indexed is just another way of saying "mapped by integer"
     bridge_MAP_TYPE = (1 << 2) | bridge_ITERABLE_TYPE, // All map types MUST be iterable (over their entry set)
-    bridge_ARRAY_TYPE = (1 << 3);
+    bridge_ARRAY_TYPE = (1 << 3),
+    bridge_PRIMITIVE_ARRAY_TYPE = (1 << 4) | bridge_ARRAY_TYPE; // Can be fetched whole with POP_VALUE
+
+  public static final int
+  // Negotiation flags
+  bridge_ACCEPT_DEFLATE = 1 << 0;
 
   public static boolean isProtocol(int c){
     return (c & 0xc0) == 0x40;
@@ -171,11 +273,12 @@ class ProtocolConstants{
 
   private static final Supplier<Map<Long, String>> constantToName = Suppliers.<Map<Long, String>> memoize(() -> {
     return entryStream()
-      .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue));
+      // Flags share values with each other, the first declared names them
+      .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue, (first, later) -> first));
   })::get;
 
   public static String getName(int constant){
-    return Optional.ofNullable(constantToName.get().get(constant))
+    return Optional.ofNullable(constantToName.get().get((long) constant))
       .orElse("UNKNOWN");
   }
 
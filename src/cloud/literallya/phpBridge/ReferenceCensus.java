@@ -0,0 +1,184 @@
+package cloud.literallya.phpBridge;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Watches the objects the sessions of a host are holding for PHP.
+ * <br>
+ * Each session may hold only so many at once, past that it fails any value that would need another object held, with an
+ * exception explaining why, rather than pinning ever more of the heap. Optionally logs a report now and then of what all the sessions hold between them
+ * by class, with {@link ObjectSizes rough sizes}, to find what PHP code is leaking
+ */
+final class ReferenceCensus{
+
+  private static final Logger log = Logger.getLogger(ReferenceCensus.class.getName());
+
+  static final int DEFAULT_LIMIT = 1 << 20;
+  // Classes named in a report, the rest are only counted
+  private static final int REPORTED_CLASSES = 20;
+  // Objects looked at to say what a full session mostly holds
+  private static final int SAMPLED_OBJECTS = 4096;
+
+  // By identity, a table's equality is that of a map
+  private final Set<ReferenceTable> tables = Collections.synchronizedSet(
+    Collections.newSetFromMap(new IdentityHashMap<>()));
+  private volatile int limit = DEFAULT_LIMIT;
+
+  // Null until reporting is first turned on
+  private ScheduledExecutorService reporter;
+  private ScheduledFuture<?> reports;
+
+  /**
+   * Objects of one class, or all of them
+   */
+  private static final class Tally{
+    long count, bytes;
+
+    void add(Object o){
+      count++;
+      bytes += ObjectSizes.estimate(o);
+    }
+  }
+
+  /**
+   * Tallies by class
+   */
+  private static final class Census{
+    final Tally total = new Tally();
+    final Map<Class<?>, Tally> byClass = new HashMap<>();
+
+    void add(Object o){
+      total.add(o);
+      byClass.computeIfAbsent(o.getClass(), c -> new Tally()).add(o);
+    }
+
+    List<Map.Entry<Class<?>, Tally>> largest(int n){
+      final List<Map.Entry<Class<?>, Tally>> classes = new ArrayList<>(byClass.entrySet());
+      classes.sort((a, b) -> Long.compare(b.getValue().bytes, a.getValue().bytes));
+      return classes.subList(0, Math.min(n, classes.size()));
+    }
+  }
+
+  /**
+   * Sets the most objects each session opened from now on may hold
+   */
+  void setLimit(int max){
+    checkArgument(max > 0, "Bad reference limit: %s", max);
+    limit = max;
+  }
+
+  void add(ReferenceTable table){
+    table.setLimit(limit);
+    tables.add(table);
+  }
+
+  void remove(ReferenceTable table){
+    tables.remove(table);
+  }
+
+  /**
+   * @return the failure for a full table, saying roughly what fills it from a sample rather than a walk of the lot
+   */
+  static IllegalStateException overLimit(ReferenceTable table, int max){
+    final Census sample = new Census();
+    table.forSomeObjects(SAMPLED_OBJECTS, sample::add);
+    final long bytes = 0 == sample.total.count ? 0 : sample.total.bytes * table.size() / sample.total.count;
+    return new IllegalStateException(String.format(
+      "This session holds %,d Java objects, about %s, the most allowed is %,d. Mostly %s. PHP must let go of them sooner,"
+        + " java_scoped can help",
+      table.size(), approximately(bytes), max,
+      0 == sample.total.count ? "unknown" : sample.largest(1).get(0).getKey().getName()));
+  }
+
+  /**
+   * Logs a report at this interval from now on, or stops if it is zero
+   */
+  synchronized void reportEvery(long period, TimeUnit unit){
+    checkArgument(period >= 0, "Bad period: %s", period);
+    if(null != reports)
+      reports.cancel(false);
+    reports = null;
+    if(0 == period){
+      if(null != reporter)
+        reporter.shutdown();
+      reporter = null;
+      return;
+    }
+    if(null == reporter)
+      reporter = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+        .setNameFormat("php-bridge-census")
+        .setDaemon(true)
+        .build());
+    reports = reporter.scheduleWithFixedDelay(this::report, period, period, unit);
+  }
+
+  /**
+   * Logs what the sessions hold, if anything
+   */
+  void report(){
+    try{
+      final List<ReferenceTable> live;
+      synchronized(tables){
+        live = new ArrayList<>(tables);
+      }
+      final Census census = new Census();
+      int sessions = 0;
+      for(ReferenceTable table : live){
+        if(0 == table.size())
+          continue;
+        sessions++;
+        table.forEachObject(census::add);
+      }
+      if(0 == census.total.count)
+        return;
+
+      final StringBuilder sb = new StringBuilder(String.format("%,d sessions hold %,d Java objects for PHP, about %s",
+        sessions, census.total.count, approximately(census.total.bytes)));
+      for(Map.Entry<Class<?>, Tally> e : census.largest(REPORTED_CLASSES))
+        sb.append(String.format("%n%,12d %10s  %s", e.getValue().count, approximately(e.getValue().bytes), e.getKey().getName()));
+      log.info(sb.toString());
+    }catch(RuntimeException e){
+      log.log(Level.WARNING, "Could not report the objects held for PHP", e); // Most likely a table changing under us
+    }
+  }
+
+  private static String approximately(long bytes){
+    if(bytes < 10 << 10)
+      return String.format("%,d bytes", bytes);
+    if(bytes < 10 << 20)
+      return String.format("%,d KB", bytes >> 10);
+    return String.format("%,d MB", bytes >> 20);
+  }
+
+}
@@ -0,0 +1,321 @@
+package cloud.literallya.phpBridge;
+
+import static cloud.literallya.phpBridge.LongHashing.MAX_LOAD_FACTOR;
+import static cloud.literallya.phpBridge.LongHashing.closedTableSize;
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.function.Consumer;
+
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * The objects a session has given PHP an ID for, by ID and by identity, without boxing either way.
+ * <br>
+ * IDs index straight into a slab of the objects, so looking one up is an array access. The slots of destroyed objects are
+ * kept on a free list and handed out again, so the slab only grows as far as the most objects PHP has held at once. Finding
+ * the ID of an object goes through an open addressing identity index of slab slots. All told each reference costs a slab
+ * slot, a free list slot and an index slot or so, against two map entries and a boxed Long for a pair of maps.
+ * <br>
+ * Objects can also be released a scope at a time. While a scope is open the slots handed out are logged, and closing it
+ * releases those still in use in one walk of its part of the log. A slot logged by a scope can only have been reused by that
+ * scope or one opened inside it, so nothing older is ever released by mistake.
+ * <br>
+ * Past a limit on the objects held at once, giving out another ID fails, objects already here are still found.
+ * <br>
+ * Viewed as a {@link LongMap} from ID to object, which can be read and removed from but not put to, IDs are only ever handed
+ * out by {@link #idFor(Object)}
+ */
+final class ReferenceTable extends AbstractLongMap<Object>{
+
+  // IDs start here so that small numbers never refer to anything, as they never have
+  static final long FIRST_ID = 2;
+  private static final int INITIAL_CAPACITY = 64;
+
+  // The object with each ID, at ID - FIRST_ID, null once destroyed
+  private Object[] objects = new Object[INITIAL_CAPACITY];
+  // Slots ever handed out, those past here have never been used
+  private int used = 0;
+  // Destroyed slots, the most recently destroyed on top
+  private int[] free = new int[INITIAL_CAPACITY];
+  private int freeCount = 0;
+  private int size = 0;
+  private int limit = Integer.MAX_VALUE;
+
+  // Slab slot + 1 of each object, 0 where empty, at its identity hash with linear probing
+  private int[] index;
+  private int indexMask;
+  private int indexThreshold;
+
+  // Slots handed out while any scope is open, each scope's starting at its mark
+  private int[] scopeLog = new int[0];
+  private int scopeLogSize = 0;
+  private int[] scopeMarks = new int[0];
+  private int scopes = 0;
+
+  ReferenceTable(){
+    makeIndex(closedTableSize(INITIAL_CAPACITY, MAX_LOAD_FACTOR));
+  }
+
+  private void makeIndex(int tableSize){
+    index = new int[tableSize];
+    indexMask = tableSize - 1;
+    indexThreshold = (int) (MAX_LOAD_FACTOR * tableSize);
+  }
+
+  private int home(Object o){
+    return LongHashing.hash(System.identityHashCode(o)) & indexMask;
+  }
+
+  /**
+   * @return where the object is in the index, or the empty place it would go
+   */
+  private int find(Object o){
+    int at = home(o);
+    for(int slot; 0 != (slot = index[at]); at = (at + 1) & indexMask)
+      if(objects[slot - 1] == o)
+        break;
+    return at;
+  }
+
+  /**
+   * Sets the most objects held at once, past which no more IDs are given out
+   */
+  void setLimit(int max){
+    checkArgument(max > 0, "Bad reference limit: %s", max);
+    limit = max;
+  }
+
+  /**
+   * @return the ID of the object, giving it the next free one if it has none yet
+   * @throws IllegalStateException
+   *           if it has none and the table is full
+   */
+  long idFor(Object o){
+    checkNotNull(o);
+    final int at = find(o);
+    if(0 != index[at])
+      return index[at] - 1 + FIRST_ID;
+    if(size >= limit)
+      throw ReferenceCensus.overLimit(this, limit);
+
+    final int slot = 0 < freeCount ? free[--freeCount] : newSlot();
+    objects[slot] = o;
+    index[at] = slot + 1;
+    if(0 < scopes){
+      if(scopeLogSize == scopeLog.length)
+        scopeLog = Arrays.copyOf(scopeLog, Math.max(INITIAL_CAPACITY, scopeLogSize << 1));
+      scopeLog[scopeLogSize++] = slot;
+    }
+    if(++size > indexThreshold)
+      rehash(index.length << 1);
+    return slot + FIRST_ID;
+  }
+
+  private int newSlot(){
+    if(used == objects.length){
+      objects = Arrays.copyOf(objects, used << 1);
+      free = Arrays.copyOf(free, used << 1);
+    }
+    return used++;
+  }
+
+  private void rehash(int tableSize){
+    makeIndex(tableSize);
+    for(int slot = 0; slot < used; slot++){
+      if(null == objects[slot])
+        continue;
+      int at = home(objects[slot]);
+      while(0 != index[at])
+        at = (at + 1) & indexMask;
+      index[at] = slot + 1;
+    }
+  }
+
+  private int slotOf(long id){
+    final long slot = id - FIRST_ID;
+    return slot >= 0 && slot < used ? (int) slot : -1;
+  }
+
+  @Override
+  public Object get(long id){
+    final int slot = slotOf(id);
+    return -1 == slot ? null : objects[slot];
+  }
+
+  @Override
+  public boolean containsKey(long id){
+    return null != get(id);
+  }
+
+  @Override
+  public Object remove(long id){
+    final int slot = slotOf(id);
+    if(-1 == slot || null == objects[slot])
+      return null;
+    final Object o = objects[slot];
+    unindex(find(o));
+    objects[slot] = null;
+    free[freeCount++] = slot;
+    size--;
+    return o;
+  }
+
+  /**
+   * Empties the place in the index, moving back any later entries that would otherwise no longer be found
+   */
+  private void unindex(int gap){
+    for(int at = (gap + 1) & indexMask; 0 != index[at]; at = (at + 1) & indexMask){
+      final int home = home(objects[index[at] - 1]);
+      // Can only move back if its home is not between the gap and where it is now (cyclically)
+      if(gap <= at ? (home <= gap || home > at) : (home <= gap && home > at)){
+        index[gap] = index[at];
+        gap = at;
+      }
+    }
+    index[gap] = 0;
+  }
+
+  /**
+   * Starts a scope inside any already open
+   */
+  void openScope(){
+    if(scopes == scopeMarks.length)
+      scopeMarks = Arrays.copyOf(scopeMarks, Math.max(8, scopes << 1));
+    scopeMarks[scopes++] = scopeLogSize;
+  }
+
+  /**
+   * Ends the innermost scope, releasing every object first given an ID in it that is still here
+   *
+   * @return the number released
+   */
+  int closeScope(){
+    checkState(0 < scopes, "No scope open");
+    final int from = scopeMarks[--scopes];
+    int released = 0;
+    for(int i = from; i < scopeLogSize; i++)
+      if(null != remove(scopeLog[i] + FIRST_ID))
+        released++;
+    scopeLogSize = from;
+    if(0 == scopes && scopeLog.length > INITIAL_CAPACITY << 4)
+      scopeLog = new int[0]; // Don't hang on to the log of one huge scope
+    return released;
+  }
+
+  /**
+   * Ends the innermost scope keeping every object in it, they belong to the scope around it from now on, if any
+   */
+  void keepScope(){
+    checkState(0 < scopes, "No scope open");
+    if(0 == --scopes)
+      scopeLogSize = 0;
+  }
+
+  /**
+   * Passes each object to the action. Meant for reporting from other threads, which may see a slightly stale view
+   */
+  void forEachObject(Consumer<Object> action){
+    forEvery(1, action);
+  }
+
+  /**
+   * Passes about the given number of objects, spread evenly over the table, to the action
+   */
+  void forSomeObjects(int count, Consumer<Object> action){
+    forEvery(Math.max(1, used / count), action);
+  }
+
+  private void forEvery(int step, Consumer<Object> action){
+    final Object[] objects = this.objects;
+    for(int slot = 0, n = Math.min(used, objects.length); slot < n; slot += step){
+      final Object o = objects[slot];
+      if(null != o)
+        action.accept(o);
+    }
+  }
+
+  @Override
+  public int size(){
+    return size;
+  }
+
+  @Override
+  public void clear(){
+    Arrays.fill(objects, 0, used, null);
+    Arrays.fill(index, 0);
+    used = freeCount = size = 0;
+    scopeLogSize = scopes = 0;
+  }
+
+  @Override
+  protected Iterator<LongMap.Entry<Object>> entryIterator(){
+    return new Iterator<LongMap.Entry<Object>>(){
+      private int next = advance(0);
+      private int last = -1;
+
+      private int advance(int from){
+        while(from < used && null == objects[from])
+          from++;
+        return from;
+      }
+
+      @Override
+      public boolean hasNext(){
+        return next < used;
+      }
+
+      @Override
+      public LongMap.Entry<Object> next(){
+        if(!hasNext())
+          throw new NoSuchElementException();
+        last = next;
+        next = advance(next + 1);
+        final long id = last + FIRST_ID;
+        final Object o = objects[last];
+        return new AbstractLongEntry<Object>(){
+          @Override
+          public long longKey(){
+            return id;
+          }
+
+          @Override
+          public Object getValue(){
+            return o;
+          }
+
+          @Override
+          public Object setValue(Object value){
+            throw new UnsupportedOperationException();
+          }
+        };
+      }
+
+      @Override
+      public void remove(){
+        if(-1 == last)
+          throw new IllegalStateException();
+        ReferenceTable.this.remove(last + FIRST_ID);
+        last = -1;
+      }
+    };
+  }
+
+}
@@ -1,27 +1,54 @@
 package cloud.literallya.phpBridge;
 
 import static cloud.literallya.phpBridge.ClassWrapper.unwrap;
+import static cloud.literallya.phpBridge.ProtocolConstants.bridge_ACCEPT_DEFLATE;
 import static cloud.literallya.phpBridge.ProtocolConstants.bridge_ACKEXCEPTION;
 import static cloud.literallya.phpBridge.ProtocolConstants.bridge_ARRAY_GET;
 import static cloud.literallya.phpBridge.ProtocolConstants.bridge_ARRAY_SET;
+import static cloud.literallya.phpBridge.ProtocolConstants.bridge_AWAIT;
+import static cloud.literallya.phpBridge.ProtocolConstants.bridge_AWAIT_ANY;
+import static cloud.literallya.phpBridge.ProtocolConstants.bridge_BATCH;
 import static cloud.literallya.phpBridge.ProtocolConstants.bridge_CLOSE;
+import static cloud.literallya.phpBridge.ProtocolConstants.bridge_DEFLATE;
 import static cloud.literallya.phpBridge.ProtocolConstants.bridge_DESTROY;
+import static cloud.literallya.phpBridge.ProtocolConstants.bridge_DESTROY_MANY;
 import static cloud.literallya.phpBridge.ProtocolConstants.bridge_GET;
+import static cloud.literallya.phpBridge.ProtocolConstants.bridge_GET_MANY;
 import static cloud.literallya.phpBridge.ProtocolConstants.bridge_INVOKE;
+import static cloud.literallya.phpBridge.ProtocolConstants.bridge_INVOKE_ASYNC;
+import static cloud.literallya.phpBridge.ProtocolConstants.bridge_INVOKE_CHAIN;
+import static cloud.literallya.phpBridge.ProtocolConstants.bridge_INVOKE_DISCARD;
+import static cloud.literallya.phpBridge.ProtocolConstants.bridge_ITER_NEXT_N;
+import static cloud.literallya.phpBridge.ProtocolConstants.bridge_NEGOTIATE;
 import static cloud.literallya.phpBridge.ProtocolConstants.bridge_POP;
+import static cloud.literallya.phpBridge.ProtocolConstants.bridge_POP_VALUE;
+import static cloud.literallya.phpBridge.ProtocolConstants.bridge_RESET;
+import static cloud.literallya.phpBridge.ProtocolConstants.bridge_SCOPE_CLOSE;
+import static cloud.literallya.phpBridge.ProtocolConstants.bridge_SCOPE_OPEN;
 import static cloud.literallya.phpBridge.ProtocolConstants.bridge_SET;
+import static cloud.literallya.phpBridge.ProtocolConstants.bridge_SET_MANY;
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
-import static com.google.common.base.Preconditions.checkState;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.UncheckedIOException;
 import java.lang.reflect.Array;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
-import com.google.common.collect.BiMap;
 import com.google.common.collect.Maps;
 import com.google.common.primitives.Ints;
 
@@ -42,40 +69,53 @@ import com.google.common.primitives.Ints;
 
 class Session{
 
-  private final BiMap<Object, Long> javaRefs = new CompositeBiMap<>(Maps.newIdentityHashMap(), Maps.newHashMap());
+  // Most elements taken from an iterator at once
+  static final int MAX_ITER_NEXT = 1 << 16;
+  // Most IDs destroyed at once, PHP batches them 256 at a time
+  static final int MAX_DESTROY_MANY = 1 << 12;
+
+  private static final Logger log = Logger.getLogger(Session.class.getName());
+
+  private final ReferenceTable javaRefs = new ReferenceTable();
   private final ValueDecoder decoder;
   private final ValueWriter encoder;
 
   private final Dispatch dispatch;
   private final FieldGetterSetter attrs;
-
-  // I/O
-  private final InputStream in;
-  private final OutputStream out;
+  private final Executor asyncCalls;
+  private final ReferenceCensus census;
 
   // State
   private final LinkedList<Object> valueStack = new LinkedList<>();
-  private boolean awaitingExceptionAck = false;
-
-  public Session(InputStream in, OutputStream out, Dispatch dispatch, FieldGetterSetter attrs){
-    this.in = checkNotNull(in);
-    this.out = checkNotNull(out);
+  // Sent to PHP and not yet acknowledged, everything PHP sends until it is is dropped
+  private Exception unacknowledged = null;
+  private int flushes = 0;
+  // Started by PHP and not yet awaited, abandoned when the session ends
+  private final Set<CompletableFuture<?>> pending = Collections.newSetFromMap(new IdentityHashMap<>());
 
+  public Session(InputStream in, OutputStream out, Dispatch dispatch, FieldGetterSetter attrs, Executor asyncCalls,
+    ReferenceCensus census){
     this.dispatch = dispatch;
     this.attrs = attrs;
+    this.asyncCalls = checkNotNull(asyncCalls);
+    this.census = checkNotNull(census);
 
-    decoder = new ValueDecoder(in, javaRefs.inverse());
-    encoder = new ValueWriter(out, javaRefs);
+    decoder = new ValueDecoder(checkNotNull(in), javaRefs);
+    encoder = new ValueWriter(checkNotNull(out), javaRefs);
   }
 
-  private int read(){
-    try{
-      int c = in.read();
-      checkState(c > -1, "Input Closed Unexpectedly");
-      return c;
-    }catch(IOException e){
-      throw new RuntimeException(e);
-    }
+  /**
+   * Creates a session that never blocks on its input. Bytes are handed to it with {@link #feed(byte[], int, int)} and acted
+   * on with {@link #pump()}, after {@link #open()} has been called once
+   */
+  Session(OutputStream out, Dispatch dispatch, FieldGetterSetter attrs, Executor asyncCalls, ReferenceCensus census){
+    this.dispatch = dispatch;
+    this.attrs = attrs;
+    this.asyncCalls = checkNotNull(asyncCalls);
+    this.census = checkNotNull(census);
+
+    decoder = new ValueDecoder(javaRefs);
+    encoder = new ValueWriter(checkNotNull(out), javaRefs);
   }
 
   private List<Object> popWholeStack(){
@@ -94,6 +134,18 @@ class Session{
         attrs.set(valueStack.removeLast(), (String) valueStack.removeLast(), unwrap(valueStack.removeLast()));
         break;
 
+      case bridge_GET_MANY:{
+        final Object target = valueStack.removeLast();
+        final List<String> fields = new ArrayList<>();
+        for(Object field : popWholeStack())
+          fields.add((String) field);
+        valueStack.add(Tuple.of(attrs.getAll(target, fields)));
+        break;
+      }
+      case bridge_SET_MANY:
+        attrs.setAll(valueStack.removeLast(), Maps.transformValues((Map<?, ?>) valueStack.removeLast(), ClassWrapper::unwrap));
+        break;
+
       case bridge_ARRAY_GET:
         valueStack.push(Array.get(valueStack.removeLast(), Ints.checkedCast((Long) valueStack.removeLast())));
         break;
@@ -105,15 +157,65 @@ class Session{
       case bridge_INVOKE:
         valueStack.add(dispatch.invoke(valueStack.removeLast(), (String) valueStack.removeLast(), popWholeStack()));
         break;
+      case bridge_INVOKE_DISCARD:
+        dispatch.invoke(valueStack.removeLast(), (String) valueStack.removeLast(), popWholeStack());
+        break;
+      case bridge_INVOKE_CHAIN:
+        valueStack.add(runChain());
+        break;
+
+      case bridge_INVOKE_ASYNC:
+        valueStack.add(invokeAsync(valueStack.removeLast(), (String) valueStack.removeLast(), popWholeStack()));
+        break;
+      case bridge_AWAIT:
+        valueStack.add(await((CompletableFuture<?>) valueStack.removeLast()));
+        break;
+      case bridge_AWAIT_ANY:
+        valueStack.add((long) awaitAny(popWholeStack()));
+        break;
+
+      case bridge_BATCH:
+        valueStack.add(runBatch());
+        break;
+      case bridge_ITER_NEXT_N:
+        valueStack.add(nextMany((Iterator<?>) valueStack.removeLast(), Ints.checkedCast((Long) valueStack.removeLast()),
+          (Boolean) valueStack.removeLast()));
+        break;
+
       case bridge_POP:
         encoder.sendValue(valueStack.removeLast());
         break;
+      case bridge_POP_VALUE:
+        encoder.sendByValue(valueStack.removeLast());
+        break;
 
       case bridge_ACKEXCEPTION:
-        awaitingExceptionAck = false;
+        unacknowledged = null;
         break;
       case bridge_DESTROY:
-        javaRefs.inverse().remove(decoder.readLong());
+        javaRefs.remove(decoder.readLong());
+        break;
+      case bridge_DESTROY_MANY:{
+        final int count = decoder.readInt();
+        checkArgument(count >= 0 && count <= MAX_DESTROY_MANY, "Bad count: %s", count);
+        decoder.checkBuffered(8L * count); // Fed, the IDs are only read once they have all arrived
+        final long[] ids = new long[count];
+        for(int i = 0; i < count; i++)
+          ids[i] = decoder.readLong();
+        for(long id : ids)
+          javaRefs.remove(id);
+        break;
+      }
+      case bridge_SCOPE_OPEN:
+        javaRefs.openScope();
+        break;
+      case bridge_SCOPE_CLOSE:
+        javaRefs.closeScope();
+        break;
+
+      case bridge_RESET:
+        reset();
+        encoder.sendValue(null); // Lets PHP know that everything before the reset has been dealt with
         break;
 
       default:
@@ -121,30 +223,259 @@ class Session{
     }
   }
 
+  /**
+   * Forgets everything PHP has been given or has sent so that the connection can be reused for another PHP request
+   */
+  private void reset(){
+    javaRefs.clear();
+    valueStack.clear();
+    dropUnacknowledged("reset the session");
+    decoder.resetPhpRefs();
+    decoder.resetSymbols();
+    encoder.resetSymbols();
+    encoder.compressAbove(-1); // The next request may not want it
+    abandonPending();
+  }
+
+  /**
+   * PHP acknowledges a failure as soon as it reads it, so one still unacknowledged was never seen. Typically a call made
+   * with INVOKE_DISCARD failed and PHP had nothing more to read before moving on. It is logged so that it is not lost
+   */
+  private void dropUnacknowledged(String how){
+    if(null != unacknowledged)
+      log.log(Level.WARNING, "PHP " + how + " without reading this failure", unacknowledged);
+    unacknowledged = null;
+  }
+
+  private CompletableFuture<Object> invokeAsync(Object target, String method, List<Object> args){
+    final CompletableFuture<Object> f = CompletableFuture.supplyAsync(() -> dispatch.invoke(target, method, args), asyncCalls);
+    pending.add(f);
+    return f;
+  }
+
+  /**
+   * Blocks the session until the call is done. Fails with whatever the call failed with
+   */
+  private Object await(CompletableFuture<?> f){
+    pending.remove(f);
+    try{
+      return f.join();
+    }catch(CompletionException e){
+      if(e.getCause() instanceof RuntimeException)
+        throw (RuntimeException) e.getCause();
+      throw e;
+    }
+  }
+
+  /**
+   * Blocks the session until any one of the calls is done, failed or not
+   *
+   * @return the index of the first one done
+   */
+  private int awaitAny(List<Object> futures){
+    checkArgument(!futures.isEmpty(), "Nothing to wait for");
+    final CompletableFuture<?>[] fs = futures.toArray(new CompletableFuture<?>[0]);
+    CompletableFuture.anyOf(fs).handle((v, t) -> null).join();
+    for(int idx = 0;; idx++)
+      if(fs[idx].isDone())
+        return idx;
+  }
+
+  /**
+   * Gives up on every call PHP started but never waited for. Calls already running carry on, their results are just dropped
+   */
+  private void abandonPending(){
+    pending.forEach(f -> f.cancel(false));
+    pending.clear();
+  }
+
+  /**
+   * Runs every call on the stack in order, each one failing on its own rather than stopping the rest
+   *
+   * @see ProtocolConstants#bridge_BATCH
+   */
+  private Tuple runBatch(){
+    final List<Call> calls = Call.readAll(valueStack);
+    valueStack.clear();
+    final List<Object> results = new ArrayList<>();
+    for(Call c : calls){
+      try{
+        results.add(c.invoke(dispatch));
+      }catch(Exception e){
+        results.add(new Tuple.Failure(e));
+      }
+    }
+    return Tuple.of(results.toArray());
+  }
+
+  /**
+   * Runs every call on the stack in order, each on the result of the one before, without any of those results being given
+   * an ID. The first call to fail fails the whole chain
+   *
+   * @return the result of the last call
+   * @see ProtocolConstants#bridge_INVOKE_CHAIN
+   */
+  private Object runChain(){
+    final List<Call> steps = Call.readAll(valueStack);
+    valueStack.clear();
+    checkArgument(!steps.isEmpty(), "Empty chain");
+    Object result = steps.get(0).invoke(dispatch);
+    for(Call step : steps.subList(1, steps.size()))
+      result = step.invokeAfter(dispatch, result);
+    return result;
+  }
+
+  /**
+   * Takes up to count elements from the iterator
+   *
+   * @return a Tuple of whether there are more, then the elements
+   * @see ProtocolConstants#bridge_ITER_NEXT_N
+   */
+  private Tuple nextMany(Iterator<?> it, int count, boolean pairs){
+    checkArgument(count > 0 && count <= MAX_ITER_NEXT, "Bad count: %s", count);
+    final List<Object> taken = new ArrayList<>();
+    taken.add(null);
+    while(taken.size() <= count && it.hasNext()){
+      final Object e = it.next();
+      taken.add(pairs && e instanceof Map.Entry ? Tuple.of(((Map.Entry<?, ?>) e).getKey(), ((Map.Entry<?, ?>) e).getValue()) : e);
+    }
+    taken.set(0, it.hasNext());
+    return Tuple.of(taken.toArray());
+  }
+
+  /**
+   * @return true for the verbs still acted on between an exception and its acknowledgement
+   */
+  private static boolean heardWhileAwaitingAck(int verb){
+    switch(verb){
+      case bridge_ACKEXCEPTION:
+      case bridge_DESTROY:
+      case bridge_DESTROY_MANY:
+      case bridge_SCOPE_OPEN:
+      case bridge_SCOPE_CLOSE:
+      case bridge_RESET:
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  /**
+   * Takes up whatever PHP says it can accept
+   */
+  private void negotiate(int flags, int compressAbove){
+    encoder.compressAbove(0 != (flags & bridge_ACCEPT_DEFLATE) ? Math.max(0, compressAbove) : -1);
+  }
+
+  /**
+   * @return the number of times output has been flushed to PHP so far in this session
+   */
+  int getFlushCount(){
+    return flushes;
+  }
+
+  private void flush() throws IOException{
+    encoder.flush();
+    flushes++;
+  }
+
   public void handleConnection() throws IOException{
+    try{
+      open();
+      while(step())
+        ;
+    }finally{
+      release();
+    }
+  }
+
+  /**
+   * Hands the I/O buffers back to the pool, the session must not be used after this
+   */
+  void release(){
+    log.log(Level.FINE, "Session ended after {0} flushes", flushes);
+    dropUnacknowledged("ended the session");
+    census.remove(javaRefs);
+    abandonPending();
+    decoder.release();
+    encoder.release();
+  }
+
+  void open() throws IOException{
+    census.add(javaRefs);
+    encoder.sendValue(null); // The greeting PHP waits for in its handshake
+    flush();
+  }
+
+  void feed(byte[] bytes, int off, int len){
+    decoder.feed(bytes, off, len);
+  }
+
+  /**
+   * Acts on every complete noun and verb fed so far, leaving any partial one buffered until more input arrives
+   *
+   * @return false once PHP has closed the session
+   */
+  boolean pump() throws IOException{
+    if(!decoder.couldDecode())
+      return true; // Still part way through a value known to need more
     do{
+      decoder.mark();
       try{
-        out.flush(); // After every action flush the output to keep things moving
-        final int c = read();
-        if(ProtocolConstants.isNoun(c)){
-          valueStack.add(decoder.readValue(c));
-        }else if(ProtocolConstants.isVerb(c)){
-          act(c);
-        }else if(c == ProtocolConstants.bridge_DEBUG){
-          assert 2 == Math.pow(2, 1);
-        }else if(c == bridge_CLOSE){
-          break;
-        }else{
-          throw new Error(String.format("Unknown Action: 0x%02x", c));
-        }
-      }catch(Exception e){
-        if(awaitingExceptionAck)
-          continue; // don't spew exceptions when we are waiting for acknowledgement of an exception
-        awaitingExceptionAck = true;
-        valueStack.clear();
-        encoder.sendException(e);
+        if(!step())
+          return false;
+      }catch(ValueDecoder.Underflow e){
+        decoder.rewind();
+        return true;
       }
     }while(true);
-    out.write(bridge_CLOSE);
+  }
+
+  /**
+   * Reads and acts on a single noun or verb
+   *
+   * @return false once PHP has closed the session
+   */
+  private boolean step() throws IOException{
+    try{
+      if(encoder.hasPending() && decoder.wouldBlock())
+        flush(); // Never sit on output while waiting for PHP
+      final int c = decoder.read();
+      if(ProtocolConstants.isNoun(c)){
+        final Object value = decoder.readValue(c); // Always read, it may define a symbol
+        if(null == unacknowledged)
+          valueStack.add(value);
+      }else if(ProtocolConstants.isVerb(c)){
+        if(null != unacknowledged && !heardWhileAwaitingAck(c))
+          return true; // PHP queued this before it knew of the failure
+        act(c);
+        if(bridge_POP == c || bridge_POP_VALUE == c || bridge_RESET == c)
+          flush(); // PHP is blocked waiting for this value
+      }else if(c == ProtocolConstants.bridge_DEBUG){
+        assert 2 == Math.pow(2, 1);
+      }else if(c == bridge_DEFLATE){
+        decoder.inflateFrame();
+      }else if(c == bridge_NEGOTIATE){
+        negotiate(decoder.readInt(), decoder.readInt());
+      }else if(c == bridge_CLOSE){
+        encoder.sendClose();
+        flush();
+        return false;
+      }else{
+        throw new Error(String.format("Unknown Action: 0x%02x", c));
+      }
+    }catch(UncheckedIOException e){
+      throw e.getCause(); // The connection itself is gone, there is nobody to report this to
+    }catch(ValueDecoder.Underflow e){
+      throw e; // Not an error, the rest of the value just hasn't arrived yet
+    }catch(Exception e){
+      if(null != unacknowledged)
+        return true; // don't spew exceptions when we are waiting for acknowledgement of an exception
+      unacknowledged = e;
+      valueStack.clear();
+      encoder.sendException(e);
+      flush(); // PHP has to see this before it can acknowledge it
+    }
+    return true;
   }
 }
@@ -0,0 +1,81 @@
+package cloud.literallya.phpBridge;
+
+import static com.google.common.base.Preconditions.checkState;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * What every way of accepting PHP connections shares: the method and field caches, and the means of starting sessions.
+ * <br>
+ * Deliberately free of any servlet types so that the standalone server runs without the servlet API on the classpath
+ */
+final class SessionHost{
+
+  private final Dispatch dispatch = new Dispatch();
+  private final FieldGetterSetter attrs = new FieldGetterSetter();
+  // Runs the calls PHP makes asynchronously, for every session. They are mostly waiting on I/O, so virtual threads if possible
+  private final ExecutorService asyncCalls = SessionThreads.bestPerSession();
+  private final ReferenceCensus census = new ReferenceCensus();
+
+  static void checkIsLoopbackAddress(InetAddress address){
+    checkState(address.isLoopbackAddress(), "request from bad host: %s", address);
+  }
+
+  /**
+   * Sets the most objects each session may hold for PHP at once
+   */
+  void limitReferences(int max){
+    census.setLimit(max);
+  }
+
+  /**
+   * Logs what the sessions hold for PHP, by class, at this interval from now on, or stops if it is zero
+   */
+  void reportReferencesEvery(long period, TimeUnit unit){
+    census.reportEvery(period, unit);
+  }
+
+  /**
+   * Stops the census reports and lets the threads running asynchronous calls end once those calls are done. No session may
+   * be started after this
+   */
+  void close(){
+    census.reportEvery(0, TimeUnit.SECONDS);
+    asyncCalls.shutdown();
+  }
+
+  /**
+   * Runs a whole bridge session over the given streams, returning once PHP closes it
+   */
+  void handleConnection(InputStream in, OutputStream out) throws IOException{
+    new Session(in, out, dispatch, attrs, asyncCalls, census).handleConnection();
+  }
+
+  /**
+   * @return a session that is fed its input rather than reading it
+   */
+  Session newFedSession(OutputStream out){
+    return new Session(out, dispatch, attrs, asyncCalls, census);
+  }
+
+}
@@ -0,0 +1,86 @@
+package cloud.literallya.phpBridge;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Executors for running one blocking {@link Session} per task.
+ * <br>
+ * Sessions spend nearly all of their time blocked reading from PHP, which is exactly what virtual threads are for: a blocked
+ * read unmounts the virtual thread rather than holding a platform thread. Virtual threads need Java 21, they are looked up
+ * reflectively so that the bridge still builds and runs on older releases.
+ */
+public final class SessionThreads{
+
+  private SessionThreads(){
+  }
+
+  private static final MethodHandle newVirtualThreadPerTaskExecutor;
+  static{
+    MethodHandle h;
+    try{
+      h = MethodHandles.publicLookup().findStatic(Executors.class, "newVirtualThreadPerTaskExecutor",
+        MethodType.methodType(ExecutorService.class));
+    }catch(NoSuchMethodException | IllegalAccessException e){
+      h = null; // Older than Java 21
+    }
+    newVirtualThreadPerTaskExecutor = h;
+  }
+
+  public static boolean virtualThreadsAvailable(){
+    return null != newVirtualThreadPerTaskExecutor;
+  }
+
+  /**
+   * @return an executor that starts a new virtual thread for every session
+   * @throws UnsupportedOperationException
+   *           if this JVM does not have virtual threads
+   */
+  public static ExecutorService virtualPerSession(){
+    if(!virtualThreadsAvailable())
+      throw new UnsupportedOperationException("Virtual threads need Java 21 or later");
+    try{
+      return (ExecutorService) newVirtualThreadPerTaskExecutor.invoke();
+    }catch(Throwable e){
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * @return an executor that runs every session on its own (pooled) platform thread
+   */
+  public static ExecutorService platformPerSession(){
+    return Executors.newCachedThreadPool(new ThreadFactoryBuilder()
+      .setNameFormat("php-bridge-%d")
+      .setDaemon(true)
+      .build());
+  }
+
+  /**
+   * @return virtual threads where available, platform threads otherwise
+   */
+  public static ExecutorService bestPerSession(){
+    return virtualThreadsAvailable() ? virtualPerSession() : platformPerSession();
+  }
+
+}
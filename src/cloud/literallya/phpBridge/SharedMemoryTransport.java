@@ -0,0 +1,236 @@
+package cloud.literallya.phpBridge;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Bridge for PHP workers on the same host that passes the protocol through memory shared with PHP rather than a socket, so
+ * that a call costs no system calls at all while both sides are busy.
+ * <br>
+ * The transport is a directory (under /dev/shm by default) of slot files, each holding a small header followed by a
+ * {@link SharedRing ring} towards Java and one towards PHP. A PHP worker takes a slot by locking its file, and
+ * one session is served on the slot at a time:
+ * <ol>
+ * <li>Java empties both rings and marks the slot {@link #READY}</li>
+ * <li>PHP locks the file, maps it, records its process ID and marks the slot {@link #ATTACHED}</li>
+ * <li>The session runs exactly as it would over a socket, ending with the usual close bytes</li>
+ * <li>PHP marks the slot {@link #FREE}, clears its process ID and unlocks the file</li>
+ * </ol>
+ * A PHP worker that dies part way through is noticed from its process ID, so PHP and Java must share a PID namespace.
+ * Access is controlled by the permissions of the slot files. This needs Java 9 or later, for VarHandle and ProcessHandle.
+ */
+public class SharedMemoryTransport implements Closeable{
+
+  public static final Path DEFAULT_DIRECTORY = Paths.get("/dev/shm/php-bridge");
+  public static final int DEFAULT_SLOTS = 16;
+  public static final int DEFAULT_RING_SIZE = 64 * 1024;
+
+  /**
+   * Owner and group may use a slot, nobody else
+   */
+  public static final Set<PosixFilePermission> DEFAULT_PERMISSIONS = Collections.unmodifiableSet(EnumSet.of(
+    PosixFilePermission.OWNER_READ, PosixFilePermission.OWNER_WRITE,
+    PosixFilePermission.GROUP_READ, PosixFilePermission.GROUP_WRITE));
+
+  // Slot file header, all longs in native byte order
+  static final long MAGIC = 0x504a425249444745L; // "PJBRIDGE"
+  static final int MAGIC_AT = 0, RING_SIZE_AT = 8, STATE_AT = 16, OWNER_AT = 24, RINGS_AT = 64;
+  static final long FREE = 0, READY = 1, ATTACHED = 2;
+
+  private static final Logger log = Logger.getLogger(SharedMemoryTransport.class.getName());
+
+  private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+  private final SessionHost host = new SessionHost();
+  private final Path directory;
+  private final ExecutorService workers;
+  private final List<Slot> slots = new ArrayList<>();
+  private volatile boolean open = true;
+
+  /**
+   * Creates the slot files in the directory, restricted to the given permissions, which control who may use the bridge
+   */
+  public SharedMemoryTransport(Path directory, int slotCount, int ringSize, Set<PosixFilePermission> permissions,
+    ExecutorService workers) throws IOException{
+    checkArgument(slotCount > 0, "Need at least one slot");
+    checkArgument(ringSize >= 1024 && Integer.bitCount(ringSize) == 1, "Ring size must be a power of two of at least 1K: %s",
+      ringSize);
+    checkNotNull(permissions);
+    this.directory = checkNotNull(directory);
+    this.workers = checkNotNull(workers);
+
+    Files.createDirectories(directory);
+    for(int i = 0; i < slotCount; i++)
+      slots.add(new Slot(directory.resolve("slot-" + i), ringSize, permissions));
+  }
+
+  public SharedMemoryTransport(Path directory, int slotCount, int ringSize, ExecutorService workers) throws IOException{
+    this(directory, slotCount, ringSize, DEFAULT_PERMISSIONS, workers);
+  }
+
+  public SharedMemoryTransport(Path directory) throws IOException{
+    this(directory, DEFAULT_SLOTS, DEFAULT_RING_SIZE, SessionThreads.bestPerSession());
+  }
+
+  /**
+   * Sets the most Java objects each session may hold for PHP at once, 1048576 unless set.
+   * Past it PHP is sent an exception for any value that would need another object held, until it lets go of some
+   */
+  public SharedMemoryTransport limitReferences(int max){
+    host.limitReferences(max);
+    return this;
+  }
+
+  /**
+   * Logs the number and rough size of the Java objects held for PHP by all sessions, by class, at this interval. Zero, the
+   * default, turns it off
+   */
+  public SharedMemoryTransport reportReferencesEvery(long period, TimeUnit unit){
+    host.reportReferencesEvery(period, unit);
+    return this;
+  }
+
+  /**
+   * Starts serving every slot on the workers
+   */
+  public SharedMemoryTransport start(){
+    for(Slot s : slots)
+      workers.execute(s::serve);
+    return this;
+  }
+
+  @Override
+  public void close() throws IOException{
+    if(!open)
+      return; // Closing twice does nothing, as Closeable asks
+    open = false; // Waiting slots notice this the next time they check on PHP
+    workers.shutdown();
+    host.close();
+    for(Slot s : slots)
+      Files.deleteIfExists(s.file);
+  }
+
+  /**
+   * One slot file and the session currently being served on it
+   */
+  private final class Slot{
+    final Path file;
+    private final MappedByteBuffer map;
+    private final SharedRing toJava, toPhp;
+
+    Slot(Path file, int ringSize, Set<PosixFilePermission> permissions) throws IOException{
+      this.file = file;
+      final int size = RINGS_AT + 2 * SharedRing.size(ringSize);
+      // Always a new file, created owner only, so that nobody can have opened it before it is restricted
+      Files.deleteIfExists(file);
+      try(FileChannel ch = FileChannel.open(file, EnumSet.of(StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+        StandardOpenOption.WRITE), PosixFilePermissions.asFileAttribute(EnumSet.of(PosixFilePermission.OWNER_READ,
+          PosixFilePermission.OWNER_WRITE)))){
+        Files.setPosixFilePermissions(file, permissions); // Then opened up as asked
+        map = ch.map(FileChannel.MapMode.READ_WRITE, 0, size); // Zero filled, so both rings start out empty
+      }
+      toJava = new SharedRing(map, RINGS_AT, ringSize, this::phpAlive);
+      toPhp = new SharedRing(map, RINGS_AT + SharedRing.size(ringSize), ringSize, this::phpAlive);
+
+      LONGS.setRelease(map, RING_SIZE_AT, (long) ringSize);
+      LONGS.setRelease(map, MAGIC_AT, MAGIC); // Last, so PHP never sees half a header
+    }
+
+    private long get(int at){
+      return (long) LONGS.getAcquire(map, at);
+    }
+
+    private void set(int at, long value){
+      LONGS.setRelease(map, at, value);
+    }
+
+    private boolean phpAlive(){
+      final long pid = get(OWNER_AT);
+      return open && 0 != pid && ProcessHandle.of(pid).map(ProcessHandle::isAlive).orElse(false);
+    }
+
+    void serve(){
+      while(open){
+        try{
+          // A worker that said goodbye properly has already detached, one that died has not
+          for(int round = 0; 0 != get(OWNER_AT) && phpAliveOrWaiting(round); round++)
+            SharedRing.idle(round, () -> true);
+          toJava.discard();
+          toPhp.discard();
+          set(OWNER_AT, 0);
+          set(STATE_AT, READY);
+
+          for(int round = 0; ATTACHED != get(STATE_AT); round++)
+            SharedRing.idle(round, () -> open);
+          host.handleConnection(toJava.inputStream(), toPhp.outputStream());
+        }catch(IOException e){
+          // PHP went away, or we are closing. Either way this session is over
+        }catch(RuntimeException | Error e){
+          // Such as a stray byte or a call that overflowed the stack. Only the session is lost, the slot must carry on
+          log.log(Level.WARNING, "Session on " + file + " failed", e);
+        }
+      }
+    }
+
+    /**
+     * Checking whether a process is alive is not free, so only done now and then
+     */
+    private boolean phpAliveOrWaiting(int round){
+      return 0 != (round & 0x3ff) || phpAlive();
+    }
+  }
+
+  /**
+   * Optionally takes the directory for the slot files and the number of slots, followed by <code>virtual</code> to run each
+   * session on a virtual thread
+   */
+  public static void main(String[] args) throws IOException, InterruptedException{
+    final Path directory = args.length > 0 ? Paths.get(args[0]) : DEFAULT_DIRECTORY;
+    final int slotCount = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_SLOTS;
+    final ExecutorService workers = args.length > 2 && "virtual".equals(args[2]) ? SessionThreads.virtualPerSession()
+      : SessionThreads.platformPerSession();
+    try(SharedMemoryTransport transport = new SharedMemoryTransport(directory, slotCount, DEFAULT_RING_SIZE, workers)){
+      transport.start();
+      Thread.currentThread().join(); // Until killed
+    }
+  }
+
+}
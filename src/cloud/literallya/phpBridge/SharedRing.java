@@ -0,0 +1,202 @@
+package cloud.literallya.phpBridge;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
+
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * A single producer, single consumer byte ring living in memory shared with another process.
+ * <br>
+ * The ring is a tail (bytes ever written), a head (bytes ever read), each on its own cache line, followed by the data. Both
+ * positions only ever grow, the producer only writes the tail and the consumer only writes the head. Positions are published
+ * with release stores and read with acquire loads so that the data they cover is always visible before they are.
+ * <br>
+ * Neither side can wake the other, so a side with nothing to do spins briefly and then parks for increasingly long spells,
+ * checking every so often that the other process is still there.
+ */
+final class SharedRing{
+
+  // Tail and head on separate cache lines so that the two sides do not fight over one
+  static final int TAIL_AT = 0, HEAD_AT = 64, DATA_AT = 128;
+
+  private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+  private static final int SPINS = 1 << 12;
+  private static final long MIN_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(1);
+  private static final long MAX_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+  // Roughly once a second once parked for the longest spells
+  private static final int PEER_CHECK_EVERY = 1 << 10;
+
+  private final ByteBuffer map;
+  private final ByteBuffer data; // Private position, for bulk copies
+  private final int base;
+  private final int capacity;
+  private final int mask;
+  private final BooleanSupplier peerAlive;
+
+  /**
+   * @param map
+   *          the shared mapping, which must be a direct buffer
+   * @param base
+   *          where this ring starts in the mapping, a multiple of 8
+   * @param capacity
+   *          the number of data bytes, a power of two
+   * @param peerAlive
+   *          whether the other side is still there to be waited on
+   */
+  SharedRing(ByteBuffer map, int base, int capacity, BooleanSupplier peerAlive){
+    this.map = map;
+    this.data = map.duplicate();
+    this.base = base;
+    this.capacity = capacity;
+    this.mask = capacity - 1;
+    this.peerAlive = peerAlive;
+  }
+
+  static int size(int capacity){
+    return DATA_AT + capacity;
+  }
+
+  private long tail(){
+    return (long) LONGS.getAcquire(map, base + TAIL_AT);
+  }
+
+  private long head(){
+    return (long) LONGS.getAcquire(map, base + HEAD_AT);
+  }
+
+  /**
+   * Drops anything unread. Only safe while nobody is using the other end
+   */
+  void discard(){
+    LONGS.setRelease(map, base + HEAD_AT, tail());
+  }
+
+  int available(){
+    return (int) (tail() - head());
+  }
+
+  /**
+   * Waits for at least one byte, then reads as many as are there, up to <code>len</code>
+   */
+  int read(byte[] b, int off, int len) throws IOException{
+    if(0 == len)
+      return 0;
+    final long head = head();
+    long tail;
+    for(int round = 0; head == (tail = tail()); round++)
+      idle(round, peerAlive);
+    final int n = (int) Math.min(len, tail - head);
+    final int at = (int) head & mask;
+    final int first = Math.min(n, capacity - at);
+    copy(at, b, off, first);
+    copy(0, b, off + first, n - first);
+    LONGS.setRelease(map, base + HEAD_AT, head + n);
+    return n;
+  }
+
+  private void copy(int at, byte[] b, int off, int len){
+    data.position(base + DATA_AT + at);
+    data.get(b, off, len);
+  }
+
+  /**
+   * Writes all of the bytes, waiting for the consumer to make room as needed
+   */
+  void write(byte[] b, int off, int len) throws IOException{
+    long tail = tail();
+    int round = 0;
+    while(len > 0){
+      final int free = capacity - (int) (tail - head());
+      if(0 == free){
+        idle(round++, peerAlive);
+        continue;
+      }
+      round = 0;
+      final int at = (int) tail & mask;
+      final int n = Math.min(Math.min(len, free), capacity - at);
+      data.position(base + DATA_AT + at);
+      data.put(b, off, n);
+      tail += n;
+      off += n;
+      len -= n;
+      LONGS.setRelease(map, base + TAIL_AT, tail);
+    }
+  }
+
+  /**
+   * Spins, then parks for ever longer, for one round of waiting on the other side
+   *
+   * @throws EOFException
+   *           if it turns out the other side has gone
+   */
+  static void idle(int round, BooleanSupplier peerAlive) throws EOFException{
+    if(round < SPINS){
+      Thread.onSpinWait();
+      return;
+    }
+    final int parks = round - SPINS;
+    LockSupport.parkNanos(Math.min(MAX_PARK_NANOS, MIN_PARK_NANOS << Math.min(parks, 20)));
+    if(0 == parks % PEER_CHECK_EVERY && !peerAlive.getAsBoolean())
+      throw new EOFException("Other end of the shared memory ring went away");
+  }
+
+  InputStream inputStream(){
+    return new InputStream(){
+      private final byte[] one = new byte[1];
+
+      @Override
+      public int read() throws IOException{
+        return -1 == read(one, 0, 1) ? -1 : one[0] & 0xff;
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException{
+        return SharedRing.this.read(b, off, len);
+      }
+
+      @Override
+      public int available(){
+        return SharedRing.this.available();
+      }
+    };
+  }
+
+  OutputStream outputStream(){
+    return new OutputStream(){
+      @Override
+      public void write(int b) throws IOException{
+        write(new byte[]{(byte) b}, 0, 1);
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException{
+        SharedRing.this.write(b, off, len);
+      }
+    };
+  }
+
+}
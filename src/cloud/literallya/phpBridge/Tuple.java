@@ -0,0 +1,64 @@
+package cloud.literallya.phpBridge;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.Arrays;
+
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Several values sent to PHP together as one {@link ProtocolConstants#bridge_TUPLE}, any of which may instead be the exception
+ * that stopped it from being produced.
+ * <br>
+ * Only ever lives on the value stack between being made and being popped, PHP never holds a reference to one
+ */
+final class Tuple{
+
+  /**
+   * Stands in for the value of a slot that failed
+   */
+  static final class Failure{
+    final Exception cause;
+
+    Failure(Exception cause){
+      this.cause = checkNotNull(cause);
+    }
+  }
+
+  private final Object[] values;
+
+  private Tuple(Object[] values){
+    this.values = values;
+  }
+
+  static Tuple of(Object... values){
+    return new Tuple(values);
+  }
+
+  int size(){
+    return values.length;
+  }
+
+  Object get(int idx){
+    return values[idx];
+  }
+
+  @Override
+  public String toString(){
+    return Arrays.toString(values);
+  }
+
+}
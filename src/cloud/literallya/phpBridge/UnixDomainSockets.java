@@ -0,0 +1,97 @@
+package cloud.literallya.phpBridge;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Path;
+
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Unix domain socket channels. They need Java 16, like virtual threads they are looked up reflectively so that the bridge,
+ * TCP server and all, still builds and runs on older releases.
+ */
+final class UnixDomainSockets{
+
+  private UnixDomainSockets(){
+  }
+
+  // UnixDomainSocketAddress.of(Path) and ServerSocketChannel.open(ProtocolFamily), all null before Java 16
+  private static final MethodHandle addressOf;
+  private static final MethodHandle openServer;
+  private static final ProtocolFamily UNIX;
+  static{
+    MethodHandle of = null, open = null;
+    ProtocolFamily unix = null;
+    try{
+      final Class<?> address = Class.forName("java.net.UnixDomainSocketAddress");
+      of = MethodHandles.publicLookup().findStatic(address, "of", MethodType.methodType(address, Path.class))
+        .asType(MethodType.methodType(SocketAddress.class, Path.class));
+      open = MethodHandles.publicLookup().findStatic(ServerSocketChannel.class, "open",
+        MethodType.methodType(ServerSocketChannel.class, ProtocolFamily.class));
+      unix = StandardProtocolFamily.valueOf("UNIX");
+    }catch(ClassNotFoundException | NoSuchMethodException | IllegalAccessException | IllegalArgumentException e){
+      of = open = null; // Older than Java 16
+      unix = null;
+    }
+    addressOf = of;
+    openServer = open;
+    UNIX = unix;
+  }
+
+  static boolean available(){
+    return null != addressOf;
+  }
+
+  private static void checkAvailable(){
+    if(!available())
+      throw new UnsupportedOperationException("Unix domain sockets need Java 16 or later");
+  }
+
+  /**
+   * @return the address of the socket file at the path
+   */
+  static SocketAddress address(Path socketFile){
+    checkAvailable();
+    try{
+      return (SocketAddress) addressOf.invokeExact(socketFile);
+    }catch(RuntimeException | Error e){
+      throw e;
+    }catch(Throwable e){
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * @return a new, unbound, unix domain server socket channel
+   */
+  static ServerSocketChannel openServer() throws IOException{
+    checkAvailable();
+    try{
+      return (ServerSocketChannel) openServer.invokeExact(UNIX);
+    }catch(IOException | RuntimeException | Error e){
+      throw e;
+    }catch(Throwable e){
+      throw new RuntimeException(e);
+    }
+  }
+
+}
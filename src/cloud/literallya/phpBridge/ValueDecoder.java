@@ -1,24 +1,37 @@
 package cloud.literallya.phpBridge;
 
 import static cloud.literallya.phpBridge.ProtocolConstants.bridge_A;
+import static cloud.literallya.phpBridge.ProtocolConstants.bridge_BIN;
 import static cloud.literallya.phpBridge.ProtocolConstants.bridge_D;
 import static cloud.literallya.phpBridge.ProtocolConstants.bridge_J;
 import static cloud.literallya.phpBridge.ProtocolConstants.bridge_L;
 import static cloud.literallya.phpBridge.ProtocolConstants.bridge_MAP;
+import static cloud.literallya.phpBridge.ProtocolConstants.bridge_PACKED;
+import static cloud.literallya.phpBridge.ProtocolConstants.bridge_PREV;
 import static cloud.literallya.phpBridge.ProtocolConstants.bridge_REF;
 import static cloud.literallya.phpBridge.ProtocolConstants.bridge_S;
+import static cloud.literallya.phpBridge.ProtocolConstants.bridge_SYM;
+import static cloud.literallya.phpBridge.ProtocolConstants.bridge_SYMDEF;
 import static cloud.literallya.phpBridge.ProtocolConstants.bridge_V;
 import static cloud.literallya.phpBridge.ProtocolConstants.bridge_Z;
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
 
 import com.google.common.base.Charsets;
 import com.google.common.collect.Maps;
+import com.google.common.primitives.Ints;
 
 /*
  * This program is free software: you can redistribute it and/or modify
@@ -38,63 +51,299 @@ import com.google.common.collect.Maps;
 @SuppressWarnings("rawtypes")
 class ValueDecoder{
 
-  private final InputStream input;
-  private final Map<Long, Object> idToObject;
+  private final InputStream input; // null when input is fed to the decoder instead
+  private final LongMap<Object> idToObject;
   private final LongMap<Map<Object, Object>> phpRefs = new HashingLongMap<>();
+  // Interned, indexed by symbol number
+  private final List<String> symbols = new ArrayList<>();
 
-  ValueDecoder(InputStream i, Map<Long, Object> id){
+  // Bytes read from the input but not yet decoded are between the position and the limit
+  private ByteBuffer buf;
+  private int mark = 0;
+  // How many bytes from the mark a fed decoder last found the value there needs, decoding it again with fewer is pointless
+  private int needed = 0;
+
+  ValueDecoder(InputStream i, LongMap<Object> id){
     input = i;
     idToObject = id;
+    buf = BufferPool.acquire();
+    buf.flip(); // Start out empty, ready for reading
+  }
+
+  /**
+   * Creates a decoder that never reads on its own, bytes are handed to it with {@link #feed(byte[], int, int)} as they arrive
+   * and running out of them part way through a value throws {@link Underflow}
+   */
+  ValueDecoder(LongMap<Object> id){
+    this(null, id);
+  }
+
+  /**
+   * Thrown by a fed decoder when a value is incomplete. There is nothing exceptional about this so it is a stackless singleton
+   */
+  static final class Underflow extends RuntimeException{
+    private static final long serialVersionUID = 1L;
+
+    static final Underflow INSTANCE = new Underflow();
+
+    private Underflow(){
+      super("More input needed", null, false, false);
+    }
+  }
+
+  /**
+   * Appends bytes to the end of the buffered input, growing the buffer if needed
+   */
+  void feed(byte[] bytes, int off, int len){
+    checkState(null == input, "Only a fed decoder can be fed");
+    mark = 0; // Marks never span a feed, everything before the position is done with
+    if(buf.capacity() - buf.remaining() < len){
+      final ByteBuffer grown = ByteBuffer.allocate(Math.max(buf.capacity() << 1, buf.remaining() + len));
+      grown.put(buf);
+      BufferPool.release(buf);
+      buf = grown;
+    }else{
+      buf.compact();
+    }
+    buf.put(bytes, off, len);
+    buf.flip();
+  }
+
+  /**
+   * Remembers the current position so that a value which turns out to be incomplete can be {@link #rewind() rewound}
+   */
+  void mark(){
+    mark = buf.position();
+    needed = 0;
+  }
+
+  /**
+   * @return false while a fed decoder still has fewer bytes than the value it last ran out on is known to need, so that a
+   *         large value is decoded once when it is all there rather than again with every piece of it fed
+   */
+  boolean couldDecode(){
+    return buf.remaining() >= needed;
+  }
+
+  /**
+   * @return the underflow for a fed decoder that needs this many bytes more than the position to carry on
+   */
+  private Underflow underflow(long bytes){
+    needed = Ints.saturatedCast(buf.position() - mark + bytes);
+    return Underflow.INSTANCE;
+  }
+
+  /**
+   * Fails a fed decoder up front if the given number of bytes are not all buffered yet, before anything is made to hold them
+   */
+  void checkBuffered(long bytes){
+    if(null == input && buf.remaining() < bytes)
+      throw underflow(bytes);
+  }
+
+  /**
+   * Backs up to the last {@link #mark() mark} and forgets any partly decoded state so the value can be decoded again from the
+   * start once more input has been fed
+   */
+  void rewind(){
+    buf.position(mark);
+    phpRefs.clear();
+    readMapDepth = 0;
   }
 
   void resetPhpRefs(){
     phpRefs.clear();
   }
 
-  private int read(){
+  void resetSymbols(){
+    symbols.clear();
+  }
+
+  // Guards against a frame that claims to inflate to more than could ever be sensible
+  static final int MAX_INFLATED = 1 << 30;
+  private Inflater inflater;
+
+  /**
+   * Reads a compressed frame (after its {@link ProtocolConstants#bridge_DEFLATE} byte) and puts what it inflates to in front of
+   * any input already buffered, so that it is decoded next
+   */
+  void inflateFrame(){
+    final int compressed = readInt();
+    final int inflated = readInt();
+    checkState(compressed >= 0 && inflated >= 0 && inflated <= MAX_INFLATED, "Bad compressed frame: %s -> %s", compressed,
+      inflated);
+    checkBuffered(compressed);
+    final byte[] raw = new byte[compressed];
+    readFully(raw);
+
+    if(null == inflater)
+      inflater = new Inflater(true);
+    inflater.reset();
+    inflater.setInput(raw);
+    final ByteBuffer merged = ByteBuffer.allocate(Math.max(BufferPool.BUFFER_SIZE, inflated + buf.remaining()));
     try{
-      int r = input.read();
-      checkState(r > -1);
-      assert r == (r & 0xff);
-      return r;
+      int n = 0;
+      while(n < inflated && !inflater.finished() && !inflater.needsInput())
+        n += inflater.inflate(merged.array(), n, inflated - n);
+      if(n != inflated || !inflater.finished())
+        throw new DataFormatException(String.format("Expected %d bytes, got %d", inflated, n));
+    }catch(DataFormatException e){
+      // There is no finding the next noun or verb after this, the connection is no use any more
+      throw new UncheckedIOException(new IOException("Corrupt compressed frame", e));
+    }
+    merged.position(inflated);
+    merged.put(buf);
+    merged.flip();
+    BufferPool.release(buf);
+    buf = merged;
+    mark = 0; // Inflating is all or nothing, there is no going back into the frame
+  }
+
+  /**
+   * Hands the read buffer back to the pool, the decoder must not be used after this
+   */
+  void release(){
+    BufferPool.release(buf);
+    buf = null;
+    if(null != inflater)
+      inflater.end();
+  }
+
+  private static void checkEof(int read) throws EOFException{
+    if(read < 0)
+      throw new EOFException("Input Closed Unexpectedly");
+  }
+
+  /**
+   * Ensures that at least the given number of bytes are buffered, reading as many as are available in bulk until they are
+   */
+  private void fill(int bytes){
+    if(buf.remaining() >= bytes)
+      return;
+    if(null == input)
+      throw underflow(bytes);
+    assert bytes <= buf.capacity();
+
+    buf.compact();
+    try{
+      do{
+        final int r = input.read(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+        checkEof(r);
+        buf.position(buf.position() + r);
+      }while(buf.position() < bytes);
+    }catch(IOException e){
+      throw new UncheckedIOException(e);
+    }finally{
+      buf.flip();
+    }
+  }
+
+  /**
+   * Fills the given array entirely. Whatever is already buffered is copied and the remainder is read directly from the input
+   * so that large strings do not pass through the buffer
+   */
+  private void readFully(byte[] dst){
+    checkBuffered(dst.length);
+    final int buffered = Math.min(buf.remaining(), dst.length);
+    buf.get(dst, 0, buffered);
+    try{
+      for(int off = buffered; off < dst.length;){
+        final int r = input.read(dst, off, dst.length - off);
+        checkEof(r);
+        off += r;
+      }
+    }catch(IOException e){
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * @return true if the next read would have to wait on the input because nothing is buffered or available
+   */
+  boolean wouldBlock(){
+    if(buf.hasRemaining())
+      return false;
+    if(null == input)
+      return true;
+    try{
+      return input.available() < 1;
     }catch(IOException e){
-      throw new IllegalStateException(e);
+      return true;
     }
   }
 
+  int read(){
+    fill(1);
+    return buf.get() & 0xff;
+  }
+
   private boolean readBoolean(){
     return 0 != read();
   }
 
   long readLong(){
-    long l = 0;
-    for(int i = 0; i < 8; i++)
-      l = (l << 8) | read(); // Big Endian
-    return l;
+    fill(Long.BYTES);
+    return buf.getLong(); // Big Endian
   }
 
   int readInt(){
-    int v = 0;
-    for(int i = 3; i >= 0; i--)
-      v |= read() << (i << 3); // Big Endian
-    return v;
+    fill(Integer.BYTES);
+    return buf.getInt(); // Big Endian
   }
 
   private double readDouble(){
     return Double.longBitsToDouble(readLong());
   }
 
+  private Object readPacked(){
+    final int type = read();
+    final int length = readInt();
+    checkArgument(length >= 0, "Bad packed array length: %s", length);
+    checkBuffered((long) length * PackedArrays.elementSize(type));
+    final Object array = PackedArrays.newArray(type, length);
+    for(int from = 0; from < length;){
+      fill(PackedArrays.elementSize(type));
+      from += PackedArrays.get(buf, array, from);
+    }
+    return array;
+  }
+
   private Object readObjectRef(){
     return checkNotNull(idToObject.get(readLong()));
   }
 
-  private String readString(){
+  private byte[] readBinary(){
     final int len = readInt();
     checkArgument(len >= 0);
+    checkBuffered(len);
     final byte[] raw = new byte[len];
-    for(int i = 0; i < len; i++)
-      raw[i] = (byte) read();
-    return new String(raw, Charsets.UTF_8);
+    readFully(raw);
+    return raw;
+  }
+
+  private String readString(){
+    return new String(readBinary(), Charsets.UTF_8);
+  }
+
+  // PHP only makes symbols of names, there should never be anything like this many
+  static final int MAX_SYMBOLS = 1 << 16;
+
+  private String readSymbolDefinition(){
+    final int symbol = readInt();
+    final String str = readString().intern();
+    // A value that was rewound part way through may define the same symbol again
+    checkState(symbol >= 0 && symbol <= symbols.size() && symbol < MAX_SYMBOLS, "Bad symbol number: %s", symbol);
+    if(symbol == symbols.size())
+      symbols.add(str);
+    else
+      symbols.set(symbol, str);
+    return str;
+  }
+
+  private String readSymbol(){
+    final int symbol = readInt();
+    checkState(symbol >= 0 && symbol < symbols.size(), "Undefined symbol: %s", symbol);
+    return symbols.get(symbol);
   }
 
   private ClassWrapper readClass(){
@@ -143,12 +392,22 @@ class ValueDecoder{
         return readObjectRef();
       case bridge_S:
         return readString();
+      case bridge_SYMDEF:
+        return readSymbolDefinition();
+      case bridge_SYM:
+        return readSymbol();
       case bridge_V:
         return null;
       case bridge_MAP:
         return readMap();
       case bridge_REF:
         return readPhpRef();
+      case bridge_PREV:
+        return Call.PREVIOUS;
+      case bridge_PACKED:
+        return readPacked();
+      case bridge_BIN:
+        return readBinary();
       default:
         throw new IllegalStateException();
     }
@@ -1,20 +1,45 @@
 package cloud.literallya.phpBridge;
 
 import static cloud.literallya.phpBridge.ProtocolConstants.bridge_A;
+import static cloud.literallya.phpBridge.ProtocolConstants.bridge_BIN;
+import static cloud.literallya.phpBridge.ProtocolConstants.bridge_CLOSE;
 import static cloud.literallya.phpBridge.ProtocolConstants.bridge_D;
+import static cloud.literallya.phpBridge.ProtocolConstants.bridge_DEFLATE;
 import static cloud.literallya.phpBridge.ProtocolConstants.bridge_EXCEPTION;
 import static cloud.literallya.phpBridge.ProtocolConstants.bridge_J;
+import static cloud.literallya.phpBridge.ProtocolConstants.bridge_MAP;
+import static cloud.literallya.phpBridge.ProtocolConstants.bridge_MAP_END;
+import static cloud.literallya.phpBridge.ProtocolConstants.bridge_PACKED;
+import static cloud.literallya.phpBridge.ProtocolConstants.bridge_REF;
 import static cloud.literallya.phpBridge.ProtocolConstants.bridge_S;
+import static cloud.literallya.phpBridge.ProtocolConstants.bridge_STR;
+import static cloud.literallya.phpBridge.ProtocolConstants.bridge_SYM;
+import static cloud.literallya.phpBridge.ProtocolConstants.bridge_SYMDEF;
+import static cloud.literallya.phpBridge.ProtocolConstants.bridge_TUPLE;
 import static cloud.literallya.phpBridge.ProtocolConstants.bridge_V;
 import static cloud.literallya.phpBridge.ProtocolConstants.bridge_Z;
+import static com.google.common.base.Preconditions.checkArgument;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.function.BiConsumer;
 import java.util.function.Consumer;
 import java.util.function.Function;
+import java.util.stream.IntStream;
+import java.util.zip.Deflater;
 
 import com.google.common.collect.ImmutableMap;
 import com.google.common.primitives.Primitives;
@@ -38,34 +63,138 @@ import com.google.common.primitives.Primitives;
 class ValueWriter{
 
   private final OutputStream out;
-  private final Map<Object, Long> objectToId;
-  private long javaRefId = 1;
+  private final ReferenceTable javaRefs;
 
-  public ValueWriter(OutputStream out, Map<Object, Long> o){
+  // Encoded output waiting to be handed to the stream, between zero and the position
+  private ByteBuffer buf = BufferPool.acquire();
+
+  // Unencodable characters become '?', just as with String.getBytes
+  private final CharsetEncoder utf8 = StandardCharsets.UTF_8.newEncoder()
+    .onMalformedInput(CodingErrorAction.REPLACE)
+    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+  private final char[] block = new char[512];
+
+  // Short strings are sent as symbols, up to a limit so that a session returning many distinct strings can't grow this forever
+  static final int MAX_SYMBOL_LENGTH = 64;
+  static final int MAX_SYMBOLS = 4096;
+  private final Map<String, Integer> symbols = new HashMap<>();
+
+  // Collections sent by value are refused beyond these, a reference is the better way to handle anything bigger
+  static final int MAX_VALUE_DEPTH = 64;
+  static final int MAX_VALUE_ELEMENTS = 1 << 20;
+  // The collections of the value being sent so far, numbered as PHP numbers its arrays
+  private final Map<Object, Long> sentCollections = new IdentityHashMap<>();
+
+  // Flushes of at least this many bytes are compressed, negative until PHP negotiates compression
+  private int compressAbove = -1;
+  private Deflater deflater;
+
+  public ValueWriter(OutputStream out, ReferenceTable javaRefs){
     this.out = out;
-    this.objectToId = o;
+    this.javaRefs = javaRefs;
   }
 
   private long getIdForObject(Object o){
-    return objectToId.computeIfAbsent(o, v -> ++javaRefId);
+    return javaRefs.idFor(o);
+  }
+
+  /**
+   * Makes room for at least the given number of bytes, growing the buffer if needed
+   */
+  private void ensure(int bytes){
+    if(buf.remaining() >= bytes)
+      return;
+    final ByteBuffer grown = ByteBuffer.allocate(Math.max(buf.capacity() << 1, buf.position() + bytes));
+    buf.flip();
+    grown.put(buf);
+    BufferPool.release(buf);
+    buf = grown;
   }
 
   private void write(int byteValue){
-    try{
-      out.write(byteValue);
-    }catch(IOException e){
-      throw new RuntimeException(e);
-    }
+    ensure(1);
+    buf.put((byte) byteValue);
   }
 
   private void writeWide(int wide){
-    for(int i = 3; i >= 0; i--)
-      write(0xff & (wide >>> (i << 3)));
+    ensure(Integer.BYTES);
+    buf.putInt(wide); // Big Endian
   }
 
   private void writeDoubleWide(long wide){
-    for(int i = 7; i >= 0; i--)
-      write((int) (0xffl & (wide >>> (i << 3))));
+    ensure(Long.BYTES);
+    buf.putLong(wide); // Big Endian
+  }
+
+  /**
+   * @return true if anything has been encoded since the last flush
+   */
+  boolean hasPending(){
+    return buf.position() > 0;
+  }
+
+  /**
+   * Compresses every flush of at least the given number of bytes from now on, or none if negative
+   */
+  void compressAbove(int threshold){
+    compressAbove = threshold;
+  }
+
+  private static final int FRAME_HEADER = 1 + 2 * Integer.BYTES;
+
+  /**
+   * Replaces everything pending with a single compressed frame, unless compressing does not make it any smaller
+   */
+  private void deflatePending(){
+    final int len = buf.position();
+    if(null == deflater)
+      deflater = new Deflater(Deflater.BEST_SPEED, true); // Raw deflate, which is what PHP's gzinflate expects
+    deflater.reset();
+    deflater.setInput(buf.array(), buf.arrayOffset(), len);
+    deflater.finish();
+
+    // No bigger than the input, anything that does not fit is not worth sending compressed
+    final ByteBuffer frame = ByteBuffer.allocate(FRAME_HEADER + len);
+    final byte[] a = frame.array();
+    int end = FRAME_HEADER;
+    while(!deflater.finished() && end < a.length)
+      end += deflater.deflate(a, end, a.length - end);
+    if(!deflater.finished())
+      return;
+
+    frame.put((byte) bridge_DEFLATE);
+    frame.putInt(end - FRAME_HEADER);
+    frame.putInt(len);
+    frame.position(end);
+    BufferPool.release(buf);
+    buf = frame;
+  }
+
+  /**
+   * Hands everything encoded so far to the stream in a single write and flushes it
+   */
+  public void flush() throws IOException{
+    if(hasPending()){
+      if(compressAbove >= 0 && buf.position() >= compressAbove)
+        deflatePending();
+      out.write(buf.array(), buf.arrayOffset(), buf.position());
+      if(buf.capacity() != BufferPool.BUFFER_SIZE){ // Don't hang on to the memory from one large response
+        buf = BufferPool.acquire();
+      }else{
+        buf.clear();
+      }
+    }
+    out.flush();
+  }
+
+  /**
+   * Hands the write buffer back to the pool, anything not yet flushed is lost and the writer must not be used after this
+   */
+  void release(){
+    BufferPool.release(buf);
+    buf = null;
+    if(null != deflater)
+      deflater.end();
   }
 
   private void sendNull(){
@@ -87,29 +216,262 @@ class ValueWriter{
     writeDoubleWide(Double.doubleToRawLongBits(d));
   }
 
+  /**
+   * Encodes the string as UTF-8 straight into the buffer in a single pass, leaving room for the length and filling it in once
+   * it is known.
+   * <br>
+   * The characters are copied out a block at a time so that the encoder always works array to array, where it copies runs of
+   * ASCII with a vectorized loop and only drops to encoding character by character for the rest
+   */
   private void sendStringLiteral(CharSequence str){
-    int length = Strings.utf8Length(str);
-    writeWide(length);
-    str.codePoints().forEachOrdered(Strings.utf8CodepointWriter(this::write));
+    final String s = str.toString();
+    final int chars = s.length();
+    ensure(Integer.BYTES + chars); // Exactly enough for ASCII, anything else grows the buffer as it goes
+    final int lengthAt = buf.position();
+    buf.position(lengthAt + Integer.BYTES);
+
+    utf8.reset();
+    final CharBuffer in = CharBuffer.wrap(block);
+    for(int i = 0;;){
+      final int n = Math.min(block.length - in.position(), chars - i);
+      s.getChars(i, i + n, block, in.position());
+      i += n;
+      in.limit(in.position() + n);
+      in.position(0);
+      final boolean last = i == chars;
+      while(utf8.encode(in, buf, last).isOverflow())
+        ensure(in.remaining() * 3); // No char takes more than 3 bytes, a surrogate pair takes 4 for 2
+      if(last)
+        break;
+      in.compact(); // Carries a high surrogate over to meet its low one in the next block
+    }
+    utf8.flush(buf);
+
+    buf.putInt(lengthAt, buf.position() - lengthAt - Integer.BYTES);
   }
 
+  /**
+   * Strings go as plain values, as symbols if short enough. Other CharSequences may change, so go as references
+   */
   private void sendString(CharSequence str){
-    write(bridge_S);
-    writeDoubleWide(getIdForObject(str));
+    if(!(str instanceof String)){
+      write(bridge_S);
+      writeDoubleWide(getIdForObject(str));
+      sendStringLiteral(str);
+      return;
+    }
+
+    if(str.length() <= MAX_SYMBOL_LENGTH){
+      final Integer symbol = symbols.get(str);
+      if(null != symbol){
+        write(bridge_SYM);
+        writeWide(symbol);
+        return;
+      }else if(symbols.size() < MAX_SYMBOLS){
+        final int defined = symbols.size();
+        symbols.put((String) str, defined);
+        write(bridge_SYMDEF);
+        writeWide(defined);
+        sendStringLiteral(str);
+        return;
+      }
+    }
+    write(bridge_STR);
     sendStringLiteral(str);
   }
 
+  /**
+   * Forgets every symbol sent so far, PHP does the same on reset
+   */
+  void resetSymbols(){
+    symbols.clear();
+  }
+
+  public void sendClose(){
+    write(bridge_CLOSE);
+  }
+
   public void sendException(Exception e){
     write(bridge_EXCEPTION);
     sendStringLiteral(Strings.notEmptyOr(e.getMessage(), "No Error Message"));
   }
 
+  private void sendTuple(Tuple t){
+    write(bridge_TUPLE);
+    writeWide(t.size());
+    for(int idx = 0; idx < t.size(); idx++){
+      final Object o = t.get(idx);
+      if(o instanceof Tuple.Failure)
+        sendException(((Tuple.Failure) o).cause);
+      else
+        sendAny(o);
+    }
+  }
+
+  private void sendBinary(byte[] bytes){
+    write(bridge_BIN);
+    writeWide(bytes.length);
+    ensure(bytes.length);
+    buf.put(bytes);
+  }
+
+  /**
+   * Sends the bytes between the buffer's position and limit, leaving the buffer itself untouched
+   */
+  private void sendBinary(ByteBuffer bytes){
+    write(bridge_BIN);
+    writeWide(bytes.remaining());
+    ensure(bytes.remaining());
+    buf.put(bytes.duplicate());
+  }
+
+  /**
+   * Sends a primitive array as one block of Big Endian elements
+   */
+  private void sendPacked(Object array){
+    final int length = Array.getLength(array);
+    final int size = PackedArrays.elementSize(PackedArrays.typeCode(array));
+    write(bridge_PACKED);
+    write(PackedArrays.typeCode(array));
+    writeWide(length);
+    for(int from = 0; from < length;){
+      ensure((int) Math.min((long) (length - from) * size, BufferPool.BUFFER_SIZE));
+      from += PackedArrays.put(buf, array, from);
+    }
+  }
+
+  /**
+   * Sends the value with every List, Set, Map or array in it, however deeply nested, copied into a PHP array rather than sent as a
+   * reference. Primitive arrays are sent packed. A collection found more than once is sent once and then referred to.
+   *
+   * @throws IllegalArgumentException
+   *           if a collection contains itself, or the whole is too deep or too big, in which case nothing is sent
+   */
+  public void sendByValue(Object o){
+    checkCopyable(o, 0, new long[] { MAX_VALUE_ELEMENTS }, Collections.newSetFromMap(new IdentityHashMap<>()),
+      Collections.newSetFromMap(new IdentityHashMap<>()));
+    try{
+      whole(() -> sendCopy(o));
+    }finally{
+      sentCollections.clear();
+    }
+  }
+
+  /**
+   * Sends a whole value or, if that fails part way, nothing at all: the bytes written, the IDs given out and the symbols
+   * defined for it are all taken back, so the exception PHP is sent instead is all it sees
+   */
+  private void whole(Runnable send){
+    final int start = buf.position(), symbolsBefore = symbols.size();
+    javaRefs.openScope();
+    try{
+      send.run();
+    }catch(RuntimeException e){
+      buf.position(start); // Nothing is handed to the stream before a flush
+      javaRefs.closeScope();
+      if(symbols.size() > symbolsBefore)
+        symbols.values().removeIf(symbol -> symbol >= symbolsBefore);
+      throw e;
+    }
+    javaRefs.keepScope();
+  }
+
+  private static boolean isCopied(Object o){
+    return o instanceof Collection || o instanceof Map || (null != o && o.getClass().isArray());
+  }
+
+  /**
+   * @return what goes in the PHP array in place of the collection, in order
+   */
+  private static Iterable<?> elementsOf(Object o){
+    if(o instanceof Map)
+      return ((Map) o).values();
+    if(o instanceof Collection)
+      return (Collection) o;
+    return () -> IntStream.range(0, Array.getLength(o)).mapToObj(idx -> Array.get(o, idx)).iterator();
+  }
+
+  private static int sizeOf(Object o){
+    if(o instanceof Map)
+      return ((Map) o).size();
+    if(o instanceof Collection)
+      return ((Collection) o).size();
+    return Array.getLength(o);
+  }
+
+  /**
+   * Checked up front, so that a value that turns out not to fit leaves nothing half written. Like {@link #sendCopy(Object)}
+   * it only goes into a collection the first time it is found, the elements of one found again are not sent again
+   */
+  private static void checkCopyable(Object o, int depth, long[] elementsLeft, Set<Object> enclosing, Set<Object> seen){
+    if(!isCopied(o) || PackedArrays.isPacked(o))
+      return;
+    checkArgument(!enclosing.contains(o), "A %s that contains itself can not be sent by value", o.getClass().getName());
+    if(!seen.add(o))
+      return; // Only a reference to it is sent this time
+    checkArgument(depth < MAX_VALUE_DEPTH, "Nested more than %s deep to send by value", MAX_VALUE_DEPTH);
+    elementsLeft[0] -= sizeOf(o);
+    checkArgument(elementsLeft[0] >= 0, "More than %s elements to send by value", MAX_VALUE_ELEMENTS);
+    enclosing.add(o);
+    for(Object e : elementsOf(o))
+      checkCopyable(e, depth + 1, elementsLeft, enclosing, seen);
+    enclosing.remove(o);
+  }
+
+  private void sendCopy(Object o){
+    if(!isCopied(o) || o instanceof byte[]){
+      sendAny(o);
+      return;
+    }else if(PackedArrays.isPacked(o)){
+      sendPacked(o);
+      return;
+    }
+    final Long seen = sentCollections.get(o);
+    if(null != seen){
+      write(bridge_REF);
+      writeDoubleWide(seen);
+      return;
+    }
+    final long id = sentCollections.size();
+    sentCollections.put(o, id);
+
+    write(bridge_MAP);
+    writeDoubleWide(id);
+    if(o instanceof Map){
+      for(Map.Entry e : ((Map<?, ?>) o).entrySet()){
+        sendKey(e.getKey());
+        sendCopy(e.getValue());
+      }
+    }else{
+      long idx = 0;
+      for(Object e : elementsOf(o)){
+        sendLong(idx++);
+        sendCopy(e);
+      }
+    }
+    write(bridge_MAP_END);
+  }
+
+  /**
+   * PHP array keys can only be integers or strings, anything else is keyed by its string form
+   */
+  private void sendKey(Object key){
+    if(key instanceof Long || key instanceof Integer || key instanceof Short || key instanceof Byte)
+      sendLong(((Number) key).longValue());
+    else if(key instanceof CharSequence)
+      sendString((CharSequence) key);
+    else
+      sendString(String.valueOf(key));
+  }
+
   private void sendJavaRef(Object o){
     if(null == o){
       sendNull();
     }else{
       int flags = 0;
-      if(o.getClass().isArray())
+      if(PackedArrays.isPacked(o))
+        flags |= ProtocolConstants.bridge_PRIMITIVE_ARRAY_TYPE;
+      else if(o.getClass().isArray())
         flags |= ProtocolConstants.bridge_ARRAY_TYPE;
       else if(o instanceof List)
         flags |= ProtocolConstants.bridge_INDEXED_TYPE;
@@ -144,8 +506,8 @@ class ValueWriter{
     b.put(Long.class, (BiConsumer<ValueWriter, Long>) ValueWriter::sendLong);
 
     b.put(Float.class, compose(PrimitiveUtils.getWidener(Float.class),
-      (BiConsumer<ValueWriter, Long>) ValueWriter::sendDouble));
-    b.put(Double.class, (BiConsumer<ValueWriter, Long>) ValueWriter::sendDouble);
+      (BiConsumer<ValueWriter, Double>) ValueWriter::sendDouble));
+    b.put(Double.class, (BiConsumer<ValueWriter, Double>) ValueWriter::sendDouble);
 
     primWriters = (Map) b.build();
   }
@@ -163,6 +525,10 @@ class ValueWriter{
       return (v) -> sendNull();
     }else if(CharSequence.class.isAssignableFrom(clazz)){
       return (v) -> sendString((CharSequence) v);
+    }else if(byte[].class == clazz){
+      return (v) -> sendBinary((byte[]) v);
+    }else if(ByteBuffer.class.isAssignableFrom(clazz)){
+      return (v) -> sendBinary((ByteBuffer) v);
     }else if(Primitives.isWrapperType(clazz)){
       return fromBi(primWriters.get(clazz));
     }else{
@@ -171,12 +537,22 @@ class ValueWriter{
   }
 
   public void sendValue(Object o){
+    whole(() -> sendAny(o));
+  }
+
+  private void sendAny(Object o){
     if(null == o){
       sendNull();
     }else if(o instanceof CharSequence){
       sendString((CharSequence) o);
     }else if(Primitives.isWrapperType(o.getClass())){
       sendPrim(o);
+    }else if(o instanceof byte[]){
+      sendBinary((byte[]) o);
+    }else if(o instanceof ByteBuffer){
+      sendBinary((ByteBuffer) o);
+    }else if(o instanceof Tuple){
+      sendTuple((Tuple) o);
     }else{
       sendJavaRef(o);
     }
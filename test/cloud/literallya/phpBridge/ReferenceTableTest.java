@@ -0,0 +1,212 @@
+package cloud.literallya.phpBridge;
+
+import static cloud.literallya.phpBridge.ReferenceTable.FIRST_ID;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Checks the {@link ReferenceTable} a session keeps PHP's references in: handing out and looking up IDs, destroying them and
+ * reusing their slots, growing the index, nested scopes and the limit. The bulk of it is a long random run checked step by
+ * step against a plain pair of maps.
+ * <br>
+ * Usage: <code>ReferenceTableTest [seed]</code>, throws an AssertionError on the first thing wrong
+ */
+public class ReferenceTableTest{
+
+  private static void check(boolean ok, String message, Object... args){
+    if(!ok)
+      throw new AssertionError(String.format(message, args));
+  }
+
+  private static void idsAndReuse(){
+    final ReferenceTable t = new ReferenceTable();
+    final Object a = new Object(), b = new Object(), c = new Object();
+    final long ida = t.idFor(a), idb = t.idFor(b);
+    check(FIRST_ID == ida && FIRST_ID + 1 == idb, "IDs should start at %s, got %s and %s", FIRST_ID, ida, idb);
+    check(ida == t.idFor(a), "An object should keep its ID");
+    check(a == t.get(ida) && b == t.get(idb), "Objects should be found by ID");
+    check(null == t.get(0) && null == t.get(-1) && null == t.get(idb + 1), "IDs never handed out should find nothing");
+
+    check(a == t.remove(ida), "Remove should return the object");
+    check(null == t.remove(ida) && null == t.get(ida) && !t.containsKey(ida), "A destroyed ID should find nothing");
+    check(1 == t.size(), "Size after remove: %s", t.size());
+    check(ida == t.idFor(c), "The destroyed slot should be handed out again");
+    check(idb == t.idFor(b), "Reusing a slot should not disturb the others");
+    check(ida != t.idFor(a), "An object destroyed and sent again should get a new ID");
+
+    t.clear();
+    check(0 == t.size() && null == t.get(idb), "Clear should empty the table");
+    check(FIRST_ID == t.idFor(b), "IDs should start over after clear");
+  }
+
+  private static void iteration(){
+    final ReferenceTable t = new ReferenceTable();
+    final List<Object> objects = new ArrayList<>();
+    for(int i = 0; i < 10; i++)
+      objects.add(new Object());
+    objects.forEach(t::idFor);
+    t.remove(FIRST_ID + 3);
+
+    int seen = 0;
+    for(Iterator<LongMap.Entry<Object>> it = t.longEntrySet().iterator(); it.hasNext();){
+      final LongMap.Entry<Object> e = it.next();
+      check(t.get(e.longKey()) == e.getValue(), "Entry %s does not match the table", e.longKey());
+      seen++;
+      if(0 == e.longKey() % 2)
+        it.remove();
+    }
+    check(9 == seen, "Iterated %s entries", seen);
+    check(4 == t.size(), "Iterator remove left %s", t.size());
+  }
+
+  private static void scopes(){
+    final ReferenceTable t = new ReferenceTable();
+    final Object before = new Object(), a = new Object(), b = new Object(), c = new Object(), d = new Object();
+    final long idBefore = t.idFor(before);
+
+    t.openScope();
+    final long ida = t.idFor(a);
+    t.idFor(b);
+    t.idFor(before); // Already held, so not the scope's
+    t.openScope();
+    t.idFor(c);
+    t.remove(t.idFor(d)); // Its slot is logged again when the next object reuses it, but only released once
+    final long ide = t.idFor(new Object());
+    check(2 == t.closeScope(), "Inner scope released the wrong number");
+    check(null == t.get(ide) && a == t.get(ida), "Inner scope released the wrong objects");
+    check(2 == t.closeScope(), "Outer scope released the wrong number");
+    check(1 == t.size() && before == t.get(idBefore), "Only what was held before the scopes should be left");
+
+    t.openScope();
+    t.openScope();
+    final long kept = t.idFor(a);
+    t.keepScope();
+    check(a == t.get(kept), "Keeping a scope should release nothing");
+    check(1 == t.closeScope(), "A kept scope's objects should belong to the scope around it");
+    check(null == t.get(kept), "A kept scope's objects should be released with the scope around it");
+
+    t.openScope();
+    final long outlives = t.idFor(a);
+    t.keepScope();
+    t.openScope();
+    check(0 == t.closeScope() && a == t.get(outlives), "Nothing kept with no scope around it should be released later");
+
+    try{
+      t.closeScope();
+      throw new AssertionError("Closing a scope that is not open should fail");
+    }catch(IllegalStateException expected){
+    }
+  }
+
+  private static void limit(){
+    final ReferenceTable t = new ReferenceTable();
+    t.setLimit(2);
+    final Object a = new Object();
+    final long ida = t.idFor(a);
+    t.idFor(new Object());
+    try{
+      t.idFor(new Object());
+      throw new AssertionError("A full table should not hand out another ID");
+    }catch(IllegalStateException expected){
+    }
+    check(ida == t.idFor(a), "A full table should still find the objects it holds");
+    t.remove(ida);
+    t.idFor(new Object());
+    check(2 == t.size(), "Destroying one should make room for another");
+  }
+
+  /**
+   * Random IDs given out, looked up, destroyed and scoped, checked after every step against maps doing the same
+   */
+  private static void againstMaps(long seed){
+    final Random r = new Random(seed);
+    final ReferenceTable t = new ReferenceTable();
+    final Map<Object, Long> ids = new IdentityHashMap<>();
+    final Map<Long, Object> objects = new HashMap<>();
+    final List<List<Long>> scopeLogs = new ArrayList<>();
+    final Object[] pool = new Object[1 << 16];
+    for(int i = 0; i < pool.length; i++)
+      pool[i] = new Object();
+
+    for(int step = 0; step < 1 << 20; step++){
+      final int op = r.nextInt(100);
+      if(op < 55){
+        final Object o = pool[r.nextInt(pool.length)];
+        final long id = t.idFor(o);
+        final Long expected = ids.get(o);
+        if(null != expected){
+          check(expected == id, "Step %s: object with ID %s was given %s", step, expected, id);
+        }else{
+          check(null == objects.get(id), "Step %s: ID %s handed out twice", step, id);
+          ids.put(o, id);
+          objects.put(id, o);
+          if(!scopeLogs.isEmpty())
+            scopeLogs.get(scopeLogs.size() - 1).add(id);
+        }
+      }else if(op < 95){
+        final long id = FIRST_ID + r.nextInt(pool.length);
+        final Object expected = objects.remove(id);
+        check(expected == t.remove(id), "Step %s: removing %s", step, id);
+        if(null != expected)
+          ids.remove(expected);
+      }else if(op < 97 && scopeLogs.size() < 8){
+        t.openScope();
+        scopeLogs.add(new ArrayList<>());
+      }else if(!scopeLogs.isEmpty()){
+        final List<Long> log = scopeLogs.remove(scopeLogs.size() - 1);
+        if(r.nextBoolean()){
+          int released = 0;
+          for(long id : log){
+            final Object o = objects.remove(id);
+            if(null != o){
+              ids.remove(o);
+              released++;
+            }
+          }
+          check(released == t.closeScope(), "Step %s: scope released the wrong number", step);
+        }else{
+          t.keepScope();
+          if(!scopeLogs.isEmpty())
+            scopeLogs.get(scopeLogs.size() - 1).addAll(log);
+        }
+      }
+      check(objects.size() == t.size(), "Step %s: size %s, expected %s", step, t.size(), objects.size());
+      if(0 == step % 4096)
+        for(Map.Entry<Long, Object> e : objects.entrySet())
+          check(e.getValue() == t.get(e.getKey()) && e.getKey() == t.idFor(e.getValue()), "Step %s: lost ID %s", step,
+            e.getKey());
+    }
+  }
+
+  public static void main(String[] args){
+    final long seed = args.length > 0 ? Long.parseLong(args[0]) : System.nanoTime();
+    idsAndReuse();
+    iteration();
+    scopes();
+    limit();
+    againstMaps(seed);
+    System.out.println("ReferenceTable OK, seed " + seed);
+  }
+
+}
@@ -0,0 +1,141 @@
+package cloud.literallya.phpBridge;
+
+import static cloud.literallya.phpBridge.ProtocolConstants.bridge_CLOSE;
+import static cloud.literallya.phpBridge.ProtocolConstants.bridge_GET;
+import static cloud.literallya.phpBridge.ProtocolConstants.bridge_J;
+import static cloud.literallya.phpBridge.ProtocolConstants.bridge_L;
+import static cloud.literallya.phpBridge.ProtocolConstants.bridge_POP;
+import static cloud.literallya.phpBridge.ProtocolConstants.bridge_S;
+import static cloud.literallya.phpBridge.ProtocolConstants.bridge_SCOPE_CLOSE;
+import static cloud.literallya.phpBridge.ProtocolConstants.bridge_SCOPE_OPEN;
+import static cloud.literallya.phpBridge.ProtocolConstants.bridge_SET;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Checks that a {@link Session} only flushes when PHP is owed a response: a long run of nouns and verbs that answer nothing
+ * must not flush at all, whether the session reads a stream or is fed, and each POP must flush exactly once.
+ * <br>
+ * Usage: <code>SessionFlushTest</code>, throws an AssertionError on the first thing wrong
+ */
+public class SessionFlushTest{
+
+  private static final int SETS = 10000;
+
+  // What the SETs are aimed at
+  public static long field;
+
+  private static void check(boolean ok, String message, Object... args){
+    if(!ok)
+      throw new AssertionError(String.format(message, args));
+  }
+
+  private static void string(DataOutputStream d, int type, String s) throws IOException{
+    final byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+    d.write(type);
+    d.writeInt(bytes.length);
+    d.write(bytes);
+  }
+
+  private static void target(DataOutputStream d) throws IOException{
+    string(d, bridge_S, "field");
+    string(d, bridge_L, SessionFlushTest.class.getName());
+  }
+
+  /**
+   * SETs the field to every number up to the count, inside a scope as a PHP loop might be
+   */
+  private static byte[] sets() throws IOException{
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    final DataOutputStream d = new DataOutputStream(bytes);
+    d.write(bridge_SCOPE_OPEN);
+    for(long i = 1; i <= SETS; i++){
+      d.write(bridge_J);
+      d.writeLong(i);
+      target(d);
+      d.write(bridge_SET);
+    }
+    d.write(bridge_SCOPE_CLOSE);
+    return bytes.toByteArray();
+  }
+
+  private static byte[] getAndPop() throws IOException{
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    final DataOutputStream d = new DataOutputStream(bytes);
+    target(d);
+    d.write(bridge_GET);
+    d.write(bridge_POP);
+    return bytes.toByteArray();
+  }
+
+  private static Session session(ByteArrayInputStream in, ByteArrayOutputStream out){
+    final Dispatch dispatch = new Dispatch();
+    final FieldGetterSetter attrs = new FieldGetterSetter();
+    return null == in ? new Session(out, dispatch, attrs, Runnable::run, new ReferenceCensus())
+      : new Session(in, out, dispatch, attrs, Runnable::run, new ReferenceCensus());
+  }
+
+  private static void fed() throws IOException{
+    field = 0;
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    final Session session = session(null, out);
+    session.open();
+    check(1 == session.getFlushCount(), "The greeting should be flushed once, flushed %s times", session.getFlushCount());
+    final int greeting = out.size();
+
+    final byte[] sets = sets();
+    for(int off = 0; off < sets.length; off += 1000){ // In pieces, so the session runs dry part way through values
+      session.feed(sets, off, Math.min(1000, sets.length - off));
+      check(session.pump(), "The session ended early");
+    }
+    check(SETS == field, "Field set to %s", field);
+    check(1 == session.getFlushCount(), "SETs flushed %s times", session.getFlushCount() - 1);
+    check(greeting == out.size(), "SETs wrote %s bytes", out.size() - greeting);
+
+    final byte[] pop = getAndPop();
+    session.feed(pop, 0, pop.length);
+    session.pump();
+    check(2 == session.getFlushCount(), "A POP should flush once, flushed %s times", session.getFlushCount() - 1);
+    check(greeting < out.size(), "A POP should have been answered");
+    session.release();
+  }
+
+  private static void streamed() throws IOException{
+    field = 0;
+    final ByteArrayOutputStream in = new ByteArrayOutputStream();
+    in.write(sets());
+    in.write(getAndPop());
+    in.write(bridge_CLOSE);
+    final Session session = session(new ByteArrayInputStream(in.toByteArray()), new ByteArrayOutputStream());
+    session.handleConnection();
+    check(SETS == field, "Field set to %s", field);
+    check(3 == session.getFlushCount(), "Expected the greeting, the POP and the close to flush, flushed %s times",
+      session.getFlushCount());
+  }
+
+  public static void main(String[] args) throws IOException{
+    fed();
+    streamed();
+    System.out.println("Session flushes OK");
+  }
+
+}
@@ -0,0 +1,324 @@
+package cloud.literallya.phpBridge;
+
+import static cloud.literallya.phpBridge.ProtocolConstants.bridge_A;
+import static cloud.literallya.phpBridge.ProtocolConstants.bridge_BIN;
+import static cloud.literallya.phpBridge.ProtocolConstants.bridge_D;
+import static cloud.literallya.phpBridge.ProtocolConstants.bridge_DEFLATE;
+import static cloud.literallya.phpBridge.ProtocolConstants.bridge_J;
+import static cloud.literallya.phpBridge.ProtocolConstants.bridge_MAP;
+import static cloud.literallya.phpBridge.ProtocolConstants.bridge_MAP_END;
+import static cloud.literallya.phpBridge.ProtocolConstants.bridge_PACKED;
+import static cloud.literallya.phpBridge.ProtocolConstants.bridge_REF;
+import static cloud.literallya.phpBridge.ProtocolConstants.bridge_S;
+import static cloud.literallya.phpBridge.ProtocolConstants.bridge_SYM;
+import static cloud.literallya.phpBridge.ProtocolConstants.bridge_SYMDEF;
+import static cloud.literallya.phpBridge.ProtocolConstants.bridge_V;
+import static cloud.literallya.phpBridge.ProtocolConstants.bridge_Z;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+import com.google.common.base.Strings;
+
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Checks that a fed {@link ValueDecoder}, as the non-blocking transports use, decodes the same values as one reading a stream
+ * however the input is split up. Every split point lands somewhere in the middle of a value, which must throw
+ * {@link ValueDecoder.Underflow}, rewind and decode the whole value again once the rest has been fed, as a session does.
+ * Values of several MB, fed in the pieces a servlet reads, must only be decoded again once they are all there.
+ * <br>
+ * Usage: <code>ValueDecoderTest [seed]</code>, throws an AssertionError on the first thing wrong
+ */
+public class ValueDecoderTest{
+
+  private static final Object REFERENCED = new Object();
+
+  private static void check(boolean ok, String message, Object... args){
+    if(!ok)
+      throw new AssertionError(String.format(message, args));
+  }
+
+  private static void string(DataOutputStream d, int type, String s) throws IOException{
+    final byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+    d.write(type);
+    d.writeInt(bytes.length);
+    d.write(bytes);
+  }
+
+  /**
+   * Writes one of everything PHP sends, including nested arrays, references within them, symbols and values larger than
+   * the decoder's buffer
+   */
+  private static void values(DataOutputStream d, long objectId) throws IOException{
+    d.write(bridge_Z);
+    d.write(1);
+    d.write(bridge_J);
+    d.writeLong(-42);
+    d.write(bridge_D);
+    d.writeDouble(Math.PI);
+    d.write(bridge_V);
+    string(d, bridge_S, "héllo wörld");
+    d.write(bridge_SYMDEF);
+    d.writeInt(0);
+    d.writeInt(4);
+    d.write("name".getBytes(StandardCharsets.UTF_8));
+    d.write(bridge_SYM);
+    d.writeInt(0);
+    d.write(bridge_A);
+    d.writeLong(objectId);
+
+    d.write(bridge_MAP); // [0 => "x", 1 => [name => 7], 2 => the same array again]
+    d.writeLong(0);
+    d.write(bridge_J);
+    d.writeLong(0);
+    string(d, bridge_S, "x");
+    d.write(bridge_J);
+    d.writeLong(1);
+    d.write(bridge_MAP);
+    d.writeLong(1);
+    d.write(bridge_SYM);
+    d.writeInt(0);
+    d.write(bridge_J);
+    d.writeLong(7);
+    d.write(bridge_MAP_END);
+    d.write(bridge_J);
+    d.writeLong(2);
+    d.write(bridge_REF);
+    d.writeLong(1);
+    d.write(bridge_MAP_END);
+
+    d.write(bridge_PACKED);
+    d.write('J');
+    d.writeInt(3000); // Bigger than the buffer
+    for(int i = 0; i < 3000; i++)
+      d.writeLong(i * 31L);
+    d.write(bridge_BIN);
+    d.writeInt(3);
+    d.write(new byte[] { 1, 2, 3 });
+    string(d, bridge_S, Strings.repeat("long string ", 2000));
+  }
+
+  private static byte[] input(long objectId) throws IOException{
+    final ByteArrayOutputStream plain = new ByteArrayOutputStream();
+    values(new DataOutputStream(plain), objectId);
+
+    // Then the same again in a compressed frame
+    final Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+    deflater.setInput(plain.toByteArray());
+    deflater.finish();
+    final byte[] compressed = new byte[plain.size() + 64];
+    final int length = deflater.deflate(compressed);
+    check(deflater.finished(), "Test input did not compress");
+    deflater.end();
+
+    final ByteArrayOutputStream all = new ByteArrayOutputStream();
+    final DataOutputStream d = new DataOutputStream(all);
+    d.write(plain.toByteArray());
+    d.write(bridge_DEFLATE);
+    d.writeInt(length);
+    d.writeInt(plain.size());
+    d.write(compressed, 0, length);
+    return all.toByteArray();
+  }
+
+  /**
+   * Reads the next value, inflating any compressed frame on the way as a session does
+   */
+  private static Object next(ValueDecoder decoder){
+    int c = decoder.read();
+    while(bridge_DEFLATE == c){
+      decoder.inflateFrame();
+      c = decoder.read();
+    }
+    return decoder.readValue(c);
+  }
+
+  private static List<Object> readAll(ValueDecoder decoder, int count){
+    final List<Object> values = new ArrayList<>();
+    while(values.size() < count)
+      values.add(next(decoder));
+    return values;
+  }
+
+  /**
+   * Feeds the input in pieces of the given sizes, decoding all it can after each
+   */
+  private static List<Object> fed(ReferenceTable refs, byte[] input, int[] pieces){
+    final ValueDecoder decoder = new ValueDecoder(refs);
+    final List<Object> values = new ArrayList<>();
+    try{
+      int underflows = 0;
+      for(int at = 0, p = 0; at < input.length; at += pieces[p++]){
+        decoder.feed(input, at, Math.min(pieces[p], input.length - at));
+        while(decoder.couldDecode() && !decoder.wouldBlock()){
+          decoder.mark();
+          try{
+            values.add(next(decoder));
+          }catch(ValueDecoder.Underflow e){
+            decoder.rewind();
+            underflows++;
+            break;
+          }
+        }
+      }
+      check(decoder.wouldBlock(), "Input left over");
+      check(pieces.length < 2 || underflows > 0, "Split input should have run short at least once");
+    }finally{
+      decoder.release();
+    }
+    return values;
+  }
+
+  private static void checkSame(List<Object> expected, List<Object> actual, String how){
+    check(expected.size() == actual.size(), "%s: %s values, expected %s", how, actual.size(), expected.size());
+    for(int i = 0; i < expected.size(); i++)
+      check(Arrays.deepEquals(new Object[] { expected.get(i) }, new Object[] { actual.get(i) }), "%s: value %s differs: %s",
+        how, i, actual.get(i));
+    check(actual.get(5) == actual.get(6), "%s: a symbol should decode to the string it was defined as", how);
+    for(Object v : actual){
+      if(v instanceof Map){
+        final Map<?, ?> map = (Map<?, ?>) v;
+        check(map.get(2L) == map.get(1L), "%s: a reference within an array should be to the same array", how);
+      }
+    }
+  }
+
+  /**
+   * Feeds a single large value in 8 KB pieces as a session would, checking it is decoded in a few tries rather than once per
+   * piece
+   */
+  private static void large(String what, byte[] value, Object expected){
+    final int piece = 8 << 10, mostTries = 4;
+    final ValueDecoder decoder = new ValueDecoder(new ReferenceTable());
+    final long start = System.nanoTime();
+    Object decoded = null;
+    int tries = 0;
+    try{
+      for(int at = 0; at < value.length && null == decoded; at += piece){
+        decoder.feed(value, at, Math.min(piece, value.length - at));
+        if(!decoder.couldDecode())
+          continue;
+        tries++;
+        decoder.mark();
+        try{
+          decoded = next(decoder);
+        }catch(ValueDecoder.Underflow e){
+          decoder.rewind();
+        }
+      }
+    }finally{
+      decoder.release();
+    }
+    final long millis = (System.nanoTime() - start) / 1_000_000;
+    check(Arrays.deepEquals(new Object[] { expected }, new Object[] { decoded }), "%s: decoded wrong", what);
+    check(tries <= mostTries, "%s: decoded %s times over %,d pieces, at most %s expected", what, tries,
+      (value.length + piece - 1) / piece, mostTries);
+    // Far more than it takes, decoding every piece afresh takes several seconds
+    check(millis < 2000, "%s: took %,d ms", what, millis);
+  }
+
+  private static void largeValues() throws IOException{
+    final int size = 16 << 20;
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    final DataOutputStream d = new DataOutputStream(bytes);
+    final String str = Strings.repeat("x", size);
+    string(d, bridge_S, str);
+    large("16 MB string", bytes.toByteArray(), str);
+
+    bytes.reset();
+    final long[] longs = new long[size / Long.BYTES];
+    Arrays.setAll(longs, i -> i * 7L);
+    d.write(bridge_PACKED);
+    d.write('J');
+    d.writeInt(longs.length);
+    for(long l : longs)
+      d.writeLong(l);
+    large("16 MB packed array", bytes.toByteArray(), longs);
+
+    // Random bytes hardly compress, so the frame is about as big
+    final byte[] random = new byte[size];
+    new Random(size).nextBytes(random);
+    bytes.reset();
+    d.write(bridge_BIN);
+    d.writeInt(random.length);
+    d.write(random);
+    final byte[] plain = bytes.toByteArray();
+    final Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+    deflater.setInput(plain);
+    deflater.finish();
+    final byte[] compressed = new byte[plain.length + (plain.length >> 6) + 64];
+    final int length = deflater.deflate(compressed);
+    check(deflater.finished(), "Test input did not compress");
+    deflater.end();
+    bytes.reset();
+    d.write(bridge_DEFLATE);
+    d.writeInt(length);
+    d.writeInt(plain.length);
+    d.write(compressed, 0, length);
+    large("16 MB compressed frame", bytes.toByteArray(), random);
+  }
+
+  private static int[] split(byte[] input, int size){
+    final int[] pieces = new int[(input.length + size - 1) / size];
+    Arrays.fill(pieces, size);
+    return pieces;
+  }
+
+  public static void main(String[] args) throws IOException{
+    final long seed = args.length > 0 ? Long.parseLong(args[0]) : System.nanoTime();
+    final ReferenceTable refs = new ReferenceTable();
+    final byte[] input = input(refs.idFor(REFERENCED));
+    final int count = 2 * 12; // Plain, then compressed
+
+    final ValueDecoder read = new ValueDecoder(new ByteArrayInputStream(input), refs);
+    final List<Object> expected = readAll(read, count);
+    check(REFERENCED == expected.get(7), "Object reference decoded as %s", expected.get(7));
+    try{
+      read.feed(input, 0, 1);
+      throw new AssertionError("Only a fed decoder should take input");
+    }catch(IllegalStateException e){
+    }
+    read.release();
+
+    checkSame(expected, fed(refs, input, new int[] { input.length }), "All at once");
+    for(int size : new int[] { 1, 2, 3, 7, 100, 8191, 8192, 8193 })
+      checkSame(expected, fed(refs, input, split(input, size)), "In pieces of " + size);
+
+    final Random r = new Random(seed);
+    for(int run = 0; run < 50; run++){
+      final List<Integer> pieces = new ArrayList<>();
+      for(int left = input.length; left > 0;){
+        final int piece = Math.min(left, 1 + r.nextInt(r.nextBoolean() ? 16 : 20000));
+        pieces.add(piece);
+        left -= piece;
+      }
+      checkSame(expected, fed(refs, input, pieces.stream().mapToInt(Integer::intValue).toArray()), "Random run " + run);
+    }
+    largeValues();
+    System.out.println("ValueDecoder OK, seed " + seed);
+  }
+
+}